@@ -0,0 +1,333 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact binary form of the sketch protocol, negotiated during the password handshake (see SketchServer).
+ *
+ * Each frame is a varint length followed by that many bytes: an opcode (the Command constants), then its arguments.
+ * IDs and coordinates are zigzag varints, so small and negative numbers take a byte or two; the second corner of a
+ * rectangle, ellipse, or segment is sent relative to the first, and each polyline point relative to the one before,
+ * so freehand strokes cost a couple of bytes per point instead of a dozen characters. Colors are raw 4-byte RGB.
+ *
+ * Version 2 adds the frames of a stroke streamed while it's drawn: STROKE (key, color), STROKE_POINTS (key, then
+ * points as in a polyline), and STROKE_END (key, tolerance). The rest is the same as version 1.
+ */
+public class BinaryProtocol {
+	public static final int VERSION = 2;				// the newest version this code speaks; text is version 0
+	public static final int STROKES = 2;				// the first version with streamed strokes
+	public static final int MAX_FRAME = 64 << 20;		// refuse frames claiming to be bigger than this
+
+	// Shape types, following the opcode of an ADD or the ID of an ADD_AT
+	private static final byte RECT = 1, ELLIPSE = 2, SEGMENT = 3, POLYLINE = 4;
+
+	/**
+	 * Encodes a command as a complete frame, length prefix included.
+	 */
+	public static byte[] encode(Command cmd) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(16);
+		write(cmd, frame);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Appends a command's complete frame to out.
+	 */
+	public static void write(Command cmd, ByteArrayOutputStream out) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(16);
+		body.write(cmd.getOp());
+		switch (cmd.getOp()) {
+		case Command.ADD:
+			writeShape(cmd.getShape(), body);
+			break;
+		case Command.ADD_AT:
+			writeZigzag(cmd.getId(), body);
+			writeShape(cmd.getShape(), body);
+			break;
+		case Command.MOVE:
+			writeZigzag(cmd.getId(), body);
+			writeZigzag(cmd.getDx(), body);
+			writeZigzag(cmd.getDy(), body);
+			break;
+		case Command.RECOLOR:
+			writeZigzag(cmd.getId(), body);
+			writeInt(cmd.getRGB(), body);
+			break;
+		case Command.REMOVE:
+		case Command.BOTTOM:
+		case Command.TOP:
+		case Command.CUR_ID:
+			writeZigzag(cmd.getId(), body);
+			break;
+		case Command.SEQ:
+			writeVarlong(cmd.getSeq(), body);
+			writeLong(cmd.getEpoch(), body);
+			break;
+		case Command.PRINT:
+			byte[] text = cmd.getText().getBytes(StandardCharsets.UTF_8);
+			body.write(text, 0, text.length);
+			break;
+		case Command.STROKE:
+			writeZigzag(cmd.getId(), body);
+			writeInt(cmd.getRGB(), body);
+			break;
+		case Command.STROKE_POINTS:
+			writeZigzag(cmd.getId(), body);
+			writePoints((Polyline) cmd.getShape(), body);
+			break;
+		case Command.STROKE_END:
+			writeZigzag(cmd.getId(), body);
+			writeVarint(cmd.getTolerance(), body);
+			break;
+		}
+		// SAVE_STATE, UNDO, REDO, and CLEAR are just the opcode
+		writeVarint(body.size(), out);
+		byte[] bytes = body.toByteArray();
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Writes a shape: its type, its coordinates, then its color.
+	 */
+	private static void writeShape(Shape shape, ByteArrayOutputStream out) {
+		if (shape instanceof Polyline) {
+			out.write(POLYLINE);
+			writePoints((Polyline) shape, out);
+		} else {
+			int x1, y1, x2, y2;
+			if (shape instanceof Rectangle) {
+				Rectangle r = (Rectangle) shape;
+				out.write(RECT);
+				x1 = r.getX1(); y1 = r.getY1(); x2 = r.getX2(); y2 = r.getY2();
+			} else if (shape instanceof Ellipse) {
+				Ellipse e = (Ellipse) shape;
+				out.write(ELLIPSE);
+				x1 = e.getX1(); y1 = e.getY1(); x2 = e.getX2(); y2 = e.getY2();
+			} else {
+				Segment s = (Segment) shape;
+				out.write(SEGMENT);
+				x1 = s.getX1(); y1 = s.getY1(); x2 = s.getX2(); y2 = s.getY2();
+			}
+			writeZigzag(x1, out);
+			writeZigzag(y1, out);
+			writeZigzag(x2 - x1, out); // Second corner relative to the first
+			writeZigzag(y2 - y1, out);
+		}
+		writeInt(shape.getColor().getRGB(), out);
+	}
+
+	/**
+	 * Writes a polyline's points: how many, then each relative to the previous one (the first to the origin).
+	 */
+	private static void writePoints(Polyline polyline, ByteArrayOutputStream out) {
+		writeVarint(polyline.size(), out);
+		int x = 0, y = 0;
+		for (int i = 0; i < polyline.size(); i++) {
+			writeZigzag(polyline.getX(i) - x, out);
+			writeZigzag(polyline.getY(i) - y, out);
+			x = polyline.getX(i);
+			y = polyline.getY(i);
+		}
+	}
+
+	/**
+	 * Decodes the body of a frame (everything after the length prefix).
+	 *
+	 * @throws IllegalArgumentException	if the frame is malformed
+	 */
+	public static Command decode(byte[] buf, int off, int len) {
+		Reader in = new Reader(buf, off, off + len);
+		byte op = in.readByte();
+		Command cmd;
+		switch (op) {
+		case Command.ADD:
+			cmd = Command.add(readShape(in));
+			break;
+		case Command.ADD_AT:
+			int id = in.readZigzag();
+			cmd = Command.addAt(id, readShape(in));
+			break;
+		case Command.MOVE:
+			cmd = Command.move(in.readZigzag(), in.readZigzag(), in.readZigzag());
+			break;
+		case Command.RECOLOR:
+			cmd = Command.recolor(in.readZigzag(), in.readInt());
+			break;
+		case Command.REMOVE:
+		case Command.BOTTOM:
+		case Command.TOP:
+		case Command.CUR_ID:
+			cmd = Command.withId(op, in.readZigzag());
+			break;
+		case Command.SAVE_STATE:
+		case Command.UNDO:
+		case Command.REDO:
+		case Command.CLEAR:
+			cmd = Command.of(op);
+			break;
+		case Command.SEQ:
+			cmd = Command.seq(in.readVarlong(), in.readLong());
+			break;
+		case Command.PRINT:
+			cmd = Command.print(new String(buf, in.pos, in.end - in.pos, StandardCharsets.UTF_8));
+			in.pos = in.end;
+			break;
+		case Command.STROKE:
+			cmd = Command.stroke(in.readZigzag(), in.readInt());
+			break;
+		case Command.STROKE_POINTS:
+			int key = in.readZigzag();
+			cmd = Command.strokePoints(key, readPoints(in));
+			break;
+		case Command.STROKE_END:
+			cmd = Command.strokeEnd(in.readZigzag(), in.readVarint());
+			break;
+		default:
+			throw new IllegalArgumentException("unknown opcode " + op);
+		}
+		if (in.pos != in.end) throw new IllegalArgumentException("trailing bytes in frame");
+		return cmd;
+	}
+
+	/**
+	 * Decodes a run of complete frames, length prefixes included (such as a snapshot).
+	 *
+	 * @throws IllegalArgumentException	if a frame is malformed or cut short
+	 */
+	public static List<Command> decodeAll(byte[] frames) {
+		List<Command> cmds = new ArrayList<Command>();
+		Reader in = new Reader(frames, 0, frames.length);
+		while (in.pos < in.end) {
+			int length = in.readVarint();
+			if (length <= 0 || length > in.end - in.pos) throw new IllegalArgumentException("bad frame length " + length);
+			cmds.add(decode(frames, in.pos, length));
+			in.pos += length;
+		}
+		return cmds;
+	}
+
+	/**
+	 * Reads points written by writePoints(), as a Polyline.
+	 */
+	private static Polyline readPoints(Reader in) {
+		int n = in.readVarint();
+		// Never negative, and at least a byte each; a bad count mustn't get as far as allocating
+		if (n < 0 || n > in.end - in.pos) throw new IllegalArgumentException("bad point count " + n);
+		int[] xs = new int[n], ys = new int[n];
+		int x = 0, y = 0;
+		for (int i = 0; i < n; i++) {
+			xs[i] = x += in.readZigzag();
+			ys[i] = y += in.readZigzag();
+		}
+		return new Polyline(xs, ys, n, null); // Colored by the caller, if it needs one
+	}
+
+	/**
+	 * Reads a shape written by writeShape().
+	 */
+	private static Shape readShape(Reader in) {
+		byte type = in.readByte();
+		if (type == POLYLINE) {
+			Polyline polyline = readPoints(in);
+			polyline.setColor(Colors.of(in.readInt()));
+			return polyline;
+		}
+		int x1 = in.readZigzag(), y1 = in.readZigzag();
+		int x2 = x1 + in.readZigzag(), y2 = y1 + in.readZigzag();
+		Color color = Colors.of(in.readInt());
+		switch (type) {
+		case RECT: return new Rectangle(x1, y1, x2, y2, color);
+		case ELLIPSE: return new Ellipse(x1, y1, x2, y2, color);
+		case SEGMENT: return new Segment(x1, y1, x2, y2, color);
+		default: throw new IllegalArgumentException("unknown shape type " + type);
+		}
+	}
+
+	// Primitive encodings
+
+	public static void writeVarint(int value, ByteArrayOutputStream out) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeVarlong(long value, ByteArrayOutputStream out) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeZigzag(int value, ByteArrayOutputStream out) {
+		writeVarint((value << 1) ^ (value >> 31), out); // Interleave so small negatives stay small
+	}
+
+	private static void writeInt(int value, ByteArrayOutputStream out) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeLong(long value, ByteArrayOutputStream out) {
+		writeInt((int) (value >>> 32), out);
+		writeInt((int) value, out);
+	}
+
+	/**
+	 * A cursor over the body of one frame
+	 */
+	private static class Reader {
+		private byte[] buf;
+		private int pos, end;
+
+		Reader(byte[] buf, int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		byte readByte() {
+			if (pos >= end) throw new IllegalArgumentException("truncated frame");
+			return buf[pos++];
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = readByte();
+				value |= (b & 0x7f) << shift;
+				if (b >= 0) return value;
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		long readVarlong() {
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) return value;
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		int readZigzag() {
+			int raw = readVarint();
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		int readInt() {
+			return (readByte() & 0xff) << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | (readByte() & 0xff);
+		}
+
+		long readLong() {
+			return (long) readInt() << 32 | (readInt() & 0xffffffffL);
+		}
+	}
+}
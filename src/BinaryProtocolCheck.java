@@ -0,0 +1,134 @@
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that BinaryProtocol turns away malformed frames the way its callers expect: with an IllegalArgumentException
+ * from decode(), which WireReader (and ChannelCommunicator) turn into an IOException that hangs up on the client.
+ * Anything else it throws would escape them and take down the client's thread, or a whole selector thread in nio mode.
+ *
+ * Not part of the server; run it by hand after changing BinaryProtocol:
+ *
+ *   java BinaryProtocolCheck [seed]
+ *
+ * Tries hand-made bad frames (point counts that are negative or bigger than the frame), then a few hundred thousand
+ * valid frames with random bytes changed, and checks that valid frames still round-trip. Prints each failure and a
+ * summary, and exits with status 1 if there were any.
+ */
+public class BinaryProtocolCheck {
+	private static final int MUTATIONS = 300000;
+	private static int failures;
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 42);
+		checkBadCounts();
+		checkMutations(random);
+		System.out.println(failures == 0 ? "BinaryProtocol rejects bad frames cleanly" : failures + " failures");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Point counts that are negative or claim more points than the frame holds, in streamed points and in polylines.
+	 */
+	private static void checkBadCounts() throws IOException {
+		// Stroke points, key 0, count -1 (as a five-byte varint)
+		expectRejected("negative stroke point count", bytes(0x10, 0x00, 0xff, 0xff, 0xff, 0xff, 0x0f));
+		// Add polyline, count Integer.MIN_VALUE
+		expectRejected("negative polyline point count", bytes(Command.ADD, 4, 0x80, 0x80, 0x80, 0x80, 0x08));
+		// Stroke points, key 0, count 1000 with only two bytes after it
+		expectRejected("oversized stroke point count", bytes(0x10, 0x00, 0xe8, 0x07, 0x02, 0x02));
+		// Add polyline, count 1000 with nothing after it
+		expectRejected("oversized polyline point count", bytes(Command.ADD, 4, 0xe8, 0x07));
+		// And through WireReader, length prefix and all, as the server reads them
+		byte[] frame = bytes(0x07, 0x10, 0x00, 0xff, 0xff, 0xff, 0xff, 0x0f);
+		try {
+			new WireReader(new ByteArrayInputStream(frame)).readFrame();
+			fail("WireReader took a negative point count");
+		}
+		catch (IOException e) {
+			// What a client's reader hangs up on
+		}
+		catch (RuntimeException e) {
+			fail("WireReader let " + e + " through for a negative point count");
+		}
+	}
+
+	/**
+	 * Changes a few bytes of valid frames at random, expecting each either to decode or to be rejected with an
+	 * IllegalArgumentException; also checks the unchanged frames decode back to what was encoded.
+	 */
+	private static void checkMutations(Random random) {
+		Command[] valid = {
+			Command.add(new Rectangle(1, 2, 300, 400, Color.RED)),
+			Command.addAt(7, new Polyline(new int[] { 1, 5, -9 }, new int[] { 2, 6, 100 }, 3, Color.BLUE)),
+			Command.move(3, -10, 20), Command.recolor(4, 0xff00ff00), Command.withId(Command.REMOVE, 5),
+			Command.strokePoints(2, new Polyline(new int[] { 10, 11, 12 }, new int[] { 0, 1, 3 }, 3, null)),
+			Command.stroke(2, 0xff0000ff), Command.strokeEnd(2, 100), Command.seq(123456789, 987654321),
+			Command.print("hello")
+		};
+		int rejected = 0;
+		for (Command cmd : valid) {
+			byte[] frame = body(cmd);
+			if (!Arrays.equals(body(BinaryProtocol.decode(frame, 0, frame.length)), frame)) {
+				fail("doesn't round-trip: " + cmd);
+			}
+		}
+		for (int i = 0; i < MUTATIONS; i++) {
+			byte[] frame = body(valid[random.nextInt(valid.length)]);
+			for (int k = random.nextInt(3); k >= 0; k--) frame[random.nextInt(frame.length)] = (byte) random.nextInt();
+			int length = random.nextInt(4) == 0 ? random.nextInt(frame.length) + 1 : frame.length; // Some cut short
+			try {
+				BinaryProtocol.decode(frame, 0, length);
+			}
+			catch (IllegalArgumentException e) {
+				rejected++;
+			}
+			catch (RuntimeException e) {
+				fail(e + " for frame " + hex(frame, length));
+			}
+		}
+		System.out.println("mutated frames: " + MUTATIONS + ", " + rejected + " rejected");
+	}
+
+	private static void expectRejected(String what, byte[] frame) {
+		try {
+			BinaryProtocol.decode(frame, 0, frame.length);
+			fail(what + " was decoded");
+		}
+		catch (IllegalArgumentException e) {
+			// As it should be
+		}
+		catch (RuntimeException e) {
+			fail(what + " threw " + e);
+		}
+	}
+
+	private static void fail(String message) {
+		failures++;
+		if (failures <= 20) System.out.println("FAIL: " + message);
+	}
+
+	/**
+	 * Returns the command's frame without its length prefix, as decode() takes it.
+	 */
+	private static byte[] body(Command cmd) {
+		byte[] frame = BinaryProtocol.encode(cmd);
+		int prefix = 0;
+		while (frame[prefix++] < 0); // Varint bytes with the high bit set, then the last one
+		return Arrays.copyOfRange(frame, prefix, frame.length);
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	private static String hex(byte[] bytes, int length) {
+		StringBuilder hex = new StringBuilder();
+		for (int i = 0; i < length; i++) hex.append(String.format("%02x ", bytes[i] & 0xff));
+		return hex.toString().trim();
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * An axis-aligned box, inclusive at both ends, that a shape stays within: every point the shape contains (see
+ * Shape.contains()) and every pixel it draws is inside it. Immutable, so a shape can hand out its own.
+ */
+public class Bounds {
+	public static final Bounds EMPTY =	// holds nothing; including() a point in it gives just that point's box
+			new Bounds(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+
+	public final int minX, minY, maxX, maxY;
+
+	public Bounds(int minX, int minY, int maxX, int maxY) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	/**
+	 * Returns the box with the given corners, in either order, grown by margin on every side.
+	 */
+	public static Bounds of(int x1, int y1, int x2, int y2, int margin) {
+		return new Bounds(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin,
+				Math.max(x1, x2) + margin, Math.max(y1, y2) + margin);
+	}
+
+	/**
+	 * Returns whether the box holds no points at all (a polyline with no points yet).
+	 */
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY;
+	}
+
+	/**
+	 * Returns whether the point is in the box.
+	 */
+	public boolean contains(int x, int y) {
+		return x >= minX && x <= maxX && y >= minY && y <= maxY;
+	}
+
+	/**
+	 * Returns whether the box overlaps the area with the given corner and size (e.g. a Graphics clip).
+	 */
+	public boolean intersects(int x, int y, int width, int height) {
+		return minX < x + width && maxX >= x && minY < y + height && maxY >= y;
+	}
+
+	/**
+	 * Returns whether the two boxes overlap.
+	 */
+	public boolean intersects(Bounds other) {
+		return minX <= other.maxX && maxX >= other.minX && minY <= other.maxY && maxY >= other.minY;
+	}
+
+	/**
+	 * Returns the box moved by the given displacement.
+	 */
+	public Bounds moved(int dx, int dy) {
+		if (isEmpty()) return this;
+		return new Bounds(minX + dx, minY + dy, maxX + dx, maxY + dy);
+	}
+
+	/**
+	 * Returns the smallest box holding this one and the point, grown by margin on every side.
+	 */
+	public Bounds including(int x, int y, int margin) {
+		return new Bounds(Math.min(minX, x - margin), Math.min(minY, y - margin),
+				Math.max(maxX, x + margin), Math.max(maxY, y + margin));
+	}
+
+	/**
+	 * Returns the smallest box holding both this one and the other (either of which may be empty).
+	 */
+	public Bounds union(Bounds other) {
+		if (other.isEmpty()) return this;
+		if (isEmpty()) return other;
+		return new Bounds(Math.min(minX, other.minX), Math.min(minY, other.minY),
+				Math.max(maxX, other.maxX), Math.max(maxY, other.maxY));
+	}
+
+	@Override
+	public String toString() {
+		return "[" + minX + "," + minY + " - " + maxX + "," + maxY + "]";
+	}
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handles communication between the server and one client over a non-blocking channel, for SketchServerSelector.
+ * Speaks exactly the same protocol as SketchServerCommunicator (password handshake, initial update, then
+ * handle/broadcast for every command, as text lines or binary frames), so editors cannot tell which kind of server
+ * they are talking to.
+ * Reads and writes only ever happen on the owning IOLoop's thread; send() and admit() just queue bytes.
+ */
+public class ChannelCommunicator implements ClientCommunicator {
+	// The most commands handling one line or frame gives the server (a stroke's end gives two); well under half of
+	// even the smallest ring (see Sequencer.MIN_CAPACITY), so there's room for it whenever reading resumes
+	private static final int HANDLE_ROOM = 2;
+
+	private SocketChannel channel;						// to talk with client
+	private SketchServer server;						// handling communication for
+	private SketchServerSelector.IOLoop loop;			// the selector thread that owns this channel
+	private SelectionKey key;							// this channel's registration with that selector
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);	// raw bytes from the client
+	private byte[] line = new byte[256];				// the line or frame being assembled (grows for long polylines)
+	private int lineLength;								// how much of line is filled
+	private int frameLength = -1;						// length of the frame being assembled, or -1 while reading its prefix
+	private int prefixShift;							// how much of the length prefix has been read
+	private boolean paused;								// whether reading waits for the server to have room for commands
+
+	private OutboundQueue outbound;						// messages waiting to go to the client
+	private ByteBuffer writing;							// the message partway out, if the socket filled up mid-message
+	private boolean writeRequested;						// whether the loop has been asked to watch for writability
+
+	private boolean settingPassword;					// whether this client gets to choose the password
+	private Handshake handshake = new Handshake();		// what the client asked for before its password
+	private boolean binary;								// whether output to the client is binary frames
+	private boolean binaryIn;							// whether input from the client is binary frames
+	private boolean active;								// whether the client has made it past the password check
+	private boolean closing;							// whether to hang up once outbound drains
+	private boolean closed;
+
+	public ChannelCommunicator(SocketChannel channel, SketchServer server, SketchServerSelector.IOLoop loop) {
+		this.channel = channel;
+		this.server = server;
+		this.loop = loop;
+		// Waiting for room would stall a selector thread, which may be the very one that has to make the room,
+		// so the block policy is treated as resync here
+		outbound = new OutboundQueue(SketchServer.QUEUE_SIZE, SketchServer.SLOW_CONSUMER == OutboundQueue.Policy.BLOCK
+				? OutboundQueue.Policy.RESYNC : SketchServer.SLOW_CONSUMER);
+	}
+
+	/**
+	 * Registers for reads with the selector; called on the loop's thread.
+	 */
+	public void register(Selector selector) throws IOException {
+		synchronized (this) {
+			key = channel.register(selector, outbound.depth() == 0 ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+		}
+	}
+
+	/**
+	 * Starts the password handshake, just as SketchServerCommunicator.run() does on connection; called on the loop's
+	 * thread, before the channel is registered for reads (see SketchServerSelector.IOLoop.register()).
+	 */
+	public void greet() {
+		System.out.println("someone connected");
+		if (server.numConnections() == 1 && !server.hasPassword()) {
+			settingPassword = true;
+			enqueue(OutboundQueue.encode("print What would you like the password to be?"));
+		} else {
+			enqueue(OutboundQueue.encode("print Please enter the password to connect to this server."));
+		}
+	}
+
+	/**
+	 * Queues a message for the client. Messages broadcast before the client is past the password check are dropped,
+	 * since the catch-up sent when it is admitted covers them anyway.
+	 */
+	public void send(Message msg) {
+		byte[] encoded;
+		synchronized (this) {
+			if (!active || closing) return;
+			encoded = msg.encoded(binary);
+		}
+		enqueue(encoded);
+	}
+
+	public int queueDepth() {
+		return outbound.depth();
+	}
+
+	public int resyncs() {
+		return outbound.getResyncs();
+	}
+
+	public boolean streamsStrokes() {
+		return handshake.getVersion() >= BinaryProtocol.STROKES;
+	}
+
+	/**
+	 * Queues a message under the slow-consumer policy and makes sure the loop will write it out,
+	 * hanging up instead if the client is too far behind.
+	 */
+	private void enqueue(byte[] msg) {
+		boolean keep;
+		synchronized (this) {
+			if (closed) return;
+			try {
+				keep = outbound.add(msg, () -> server.encodeSnapshot(binary, handshake.isSequenced()));
+			}
+			catch (InterruptedException e) {
+				keep = false; // Can't happen, since this queue never blocks
+			}
+			if (keep && !writeRequested) {
+				writeRequested = true;
+				loop.execute(this::watchWrites);
+			}
+		}
+		if (!keep) { // Outside the lock, since close() takes the server's
+			System.out.println(this + " fell too far behind; disconnecting");
+			close();
+		}
+	}
+
+	/**
+	 * Adds write interest; called on the loop's thread.
+	 */
+	private synchronized void watchWrites() {
+		if (key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Reads whatever the client has sent, handling each complete line or frame.
+	 */
+	public void handleRead() throws IOException {
+		if (channel.read(readBuffer) < 0) { // Client hung up
+			close();
+			return;
+		}
+		readBuffer.flip();
+		handleInput();
+	}
+
+	/**
+	 * Handles each complete line or frame in the read buffer, leaving the buffer ready for the next read. If the server
+	 * has no room for more commands, stops short and pauses reading until it has, rather than having handle() wait
+	 * for room on the loop's thread, which would hold up every other client on the loop, and the very writes that
+	 * drain their queues.
+	 */
+	private void handleInput() throws IOException {
+		// Once the password has failed, whatever else the client sent is dropped, so it gets one guess per connection
+		while (readBuffer.hasRemaining() && !closed && !closing) {
+			if (active && !server.canHandle(HANDLE_ROOM)) {
+				pauseReading();
+				break;
+			}
+			if (binaryIn) readFrame();
+			else readLine();
+		}
+		readBuffer.compact(); // Keeps what's left (if paused) for when reading resumes
+	}
+
+	/**
+	 * Stops watching for reads until the server has room for commands again; the client's further input waits in
+	 * its socket, and TCP pushes back on the client. Called on the loop's thread.
+	 */
+	private void pauseReading() {
+		synchronized (this) {
+			paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		server.whenCanHandle(() -> loop.execute(this::resumeReading));
+	}
+
+	/**
+	 * Handles what was left in the read buffer when reading paused, then watches for reads again; called on the
+	 * loop's thread.
+	 */
+	private void resumeReading() {
+		synchronized (this) {
+			if (closed || !paused) return;
+			paused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		readBuffer.flip();
+		try {
+			handleInput(); // May pause again at once, if others have filled the room
+		}
+		catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Consumes buffered bytes up to the end of a line, handling the line if it is complete.
+	 */
+	private void readLine() {
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length-1] == '\r') length--; // Tolerate \r\n line endings like readLine() does
+				lineLength = 0;
+				handleLine(new String(line, 0, length, StandardCharsets.UTF_8));
+				return;
+			}
+			ensureCapacity(lineLength + 1);
+			line[lineLength++] = b;
+		}
+	}
+
+	/**
+	 * Consumes buffered bytes of a binary frame, handling the frame if it is complete.
+	 */
+	private void readFrame() throws IOException {
+		while (frameLength < 0) { // Length prefix, a varint that may be split across reads
+			if (!readBuffer.hasRemaining()) return;
+			byte b = readBuffer.get();
+			lineLength |= (b & 0x7f) << prefixShift;
+			prefixShift += 7;
+			if (b >= 0) {
+				frameLength = lineLength;
+				lineLength = 0;
+				prefixShift = 0;
+				if (frameLength <= 0 || frameLength > BinaryProtocol.MAX_FRAME) {
+					throw new IOException("bad frame length " + frameLength);
+				}
+				ensureCapacity(frameLength);
+			} else if (prefixShift > 28) {
+				throw new IOException("bad frame length");
+			}
+		}
+		// Body, copied in bulk
+		int n = Math.min(readBuffer.remaining(), frameLength - lineLength);
+		readBuffer.get(line, lineLength, n);
+		lineLength += n;
+		if (lineLength == frameLength) {
+			Command cmd;
+			try {
+				cmd = BinaryProtocol.decode(line, 0, frameLength);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IOException("malformed frame: " + e.getMessage());
+			}
+			lineLength = 0;
+			frameLength = -1;
+			if (cmd.isStroke()) server.handleStroke(this, cmd); // Part of a stroke being drawn
+			else server.handle(cmd); // Update the master sketch and broadcast the command if it is valid
+		}
+	}
+
+	/**
+	 * Makes sure line can hold the given number of bytes.
+	 */
+	private void ensureCapacity(int size) {
+		if (size > line.length) { // Longer than anything seen so far
+			byte[] bigger = new byte[Math.max(size, line.length * 2)];
+			System.arraycopy(line, 0, bigger, 0, lineLength);
+			line = bigger;
+		}
+	}
+
+	/**
+	 * Handles one text line from the client: a handshake line or the password during the handshake, a command
+	 * (or the switch to binary input) afterwards.
+	 */
+	private void handleLine(String input) {
+		if (active) {
+			if (binary && input.startsWith("proto ")) {
+				binaryIn = true; // The client has switched too; everything after this line is frames
+			} else {
+				server.handleLine(input); // Update the master sketch and broadcast the line if it is valid
+			}
+		} else if (handshake.offer(input)) {
+			// Newer editors send handshake lines (see Handshake) before the password
+		} else if (settingPassword && Handshake.canBePassword(input)) {
+			server.setPassword(input); // The first editor says what the password should be
+			server.admit(this);
+		} else if (!settingPassword && server.checkPassword(input)) {
+			server.admit(this);
+		} else {
+			if (settingPassword) {
+				enqueue(OutboundQueue.encode(
+						"print Passwords can't start with \"proto \"; reconnect to choose another."));
+			} else {
+				System.out.println("Client attempted connection, but failed password check.");
+				enqueue(OutboundQueue.encode("print Password invalid."));
+			}
+			synchronized (this) {
+				closing = true; // Hang up once the message is out
+			}
+		}
+	}
+
+	/**
+	 * Lets the client in, giving it the current state of the world
+	 */
+	public synchronized void admit() {
+		if (handshake.getVersion() > 0) {
+			// Confirm the version in text; everything after this line goes to the client as frames
+			enqueue(OutboundQueue.encode("proto " + handshake.getVersion()));
+			binary = true;
+		}
+		active = true;
+		// The master sketch (or just what the client missed); holding the lock keeps broadcasts from slipping in ahead
+		enqueue(server.encodeCatchUp(handshake, binary));
+	}
+
+	/**
+	 * Writes as much queued output as the socket will take; called on the loop's thread.
+	 */
+	public void handleWrite() throws IOException {
+		boolean hangUp = false;
+		synchronized (this) {
+			while (true) {
+				if (writing == null) {
+					byte[] msg = outbound.poll();
+					if (msg == null) break;
+					writing = ByteBuffer.wrap(msg);
+				}
+				channel.write(writing);
+				if (writing.hasRemaining()) return; // Socket buffer is full; wait to be writable again
+				writing = null;
+			}
+			// Everything is out, so stop watching for writability until there's more
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			writeRequested = false;
+			hangUp = closing;
+		}
+		if (hangUp) close(); // Outside the lock, since close() takes the server's
+	}
+
+	/**
+	 * Cleans up -- note that also removes self from server's list so it doesn't broadcast here
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+		server.removeCommunicator(this);
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public String toString() {
+		return "client " + channel.socket().getRemoteSocketAddress();
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * The server's view of one connected client, independent of how that client's socket I/O is driven
+ * (a dedicated SketchServerCommunicator thread, or a channel multiplexed by SketchServerSelector).
+ * Output goes through the client's own OutboundQueue, so sending never waits on the client's socket.
+ */
+public interface ClientCommunicator {
+	/**
+	 * Queues a message for the client, in whichever protocol (text or binary) the client negotiated
+	 */
+	public void send(Message msg);
+
+	/**
+	 * Lets the client in once it has passed the password check: it is sent the master sketch, and from then on gets
+	 * every broadcast. Called through SketchServer.admit(), so nothing can be broadcast in between.
+	 */
+	public void admit();
+
+	/**
+	 * Returns whether the client speaks a protocol version with streamed strokes, and so can be sent them
+	 */
+	public boolean streamsStrokes();
+
+	/**
+	 * Returns how many messages are queued for the client but not yet written
+	 */
+	public int queueDepth();
+
+	/**
+	 * Returns how many times the client's queue overflowed and it was sent the whole sketch instead
+	 */
+	public int resyncs();
+}
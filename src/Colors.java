@@ -0,0 +1,37 @@
+import java.awt.Color;
+
+/**
+ * A cache of Color objects by RGB value. Editors draw with a handful of colors, so nearly every shape and recolor
+ * that arrives can share an existing Color instead of constructing a new one.
+ */
+public class Colors {
+	private static final int SIZE = 256;	// number of slots; a power of two
+
+	/**
+	 * One cached color; immutable, so a slot can be replaced without locking and still be read safely
+	 */
+	private static class Entry {
+		final int rgb;
+		final Color color;
+
+		Entry(int rgb, Color color) {
+			this.rgb = rgb;
+			this.color = color;
+		}
+	}
+
+	private static final Entry[] cache = new Entry[SIZE];	// direct-mapped by a hash of the RGB value
+
+	/**
+	 * Returns a Color for the given RGB value (alpha is ignored, as in new Color(rgb)).
+	 */
+	public static Color of(int rgb) {
+		rgb |= 0xff000000; // new Color(rgb) makes every color opaque, so key on the opaque value
+		int slot = (rgb * 0x9E3779B9) >>> 24; // Spread similar colors across the slots (top 8 bits of the product)
+		Entry entry = cache[slot];
+		if (entry != null && entry.rgb == rgb) return entry.color;
+		Color color = new Color(rgb);
+		cache[slot] = new Entry(rgb, color); // Racing threads may each make one; either is fine
+		return color;
+	}
+}
@@ -0,0 +1,279 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One message of the sketch protocol, decoded: either a request from an editor (add, move, recolor, remove, bottom,
+ * top, save_state, undo, redo) or an instruction from the server (ID-based add, clear, curId, print, seq).
+ * From protocol version 2 there are also the pieces of a freehand stroke streamed while it's being drawn (stroke,
+ * points, stroke_end; see SketchServer.handleStroke()), which only exist as binary frames.
+ * A command can be read from and written as a text line (see TextCodec) or as a binary frame (see BinaryProtocol);
+ * each form is cached once computed, so a broadcast encodes it at most once per protocol no matter how many clients
+ * get it.
+ */
+public class Command implements Message {
+	// Operations; the values double as the opcode byte of a binary frame
+	public static final byte ADD = 1, ADD_AT = 2, MOVE = 3, RECOLOR = 4, REMOVE = 5, BOTTOM = 6, TOP = 7,
+			SAVE_STATE = 8, UNDO = 9, REDO = 10, CLEAR = 11, CUR_ID = 12, PRINT = 13, SEQ = 14,
+			STROKE = 15, STROKE_POINTS = 16, STROKE_END = 17;
+
+	private byte op;			// which operation
+	private int id;				// the shape ID it applies to (or the new curID, for CUR_ID; or the stroke, for strokes)
+	private int dx, dy;			// displacement, for MOVE
+	private int rgb;			// new color, for RECOLOR
+	private Shape shape;		// the shape, for ADD and ADD_AT (and a Polyline of the points, for STROKE_POINTS)
+	private int tolerance;		// how far the finished stroke may be simplified, in hundredths of a pixel, for STROKE_END
+	private String text;		// the message, for PRINT
+	private long seq, epoch;	// the sequence number, and the server run it belongs to, for SEQ (see OpLog)
+
+	private String line;		// the text form, once known
+	private byte[] textBytes;	// the encoded text form, once known
+	private byte[] frame;		// the binary form, once known
+
+	private Command(byte op) {
+		this.op = op;
+	}
+
+	// Factories for each kind of command
+
+	public static Command add(Shape shape) {
+		Command cmd = new Command(ADD);
+		cmd.shape = shape;
+		return cmd;
+	}
+
+	public static Command addAt(int id, Shape shape) {
+		Command cmd = new Command(ADD_AT);
+		cmd.id = id;
+		cmd.shape = shape;
+		return cmd;
+	}
+
+	public static Command move(int id, int dx, int dy) {
+		Command cmd = new Command(MOVE);
+		cmd.id = id;
+		cmd.dx = dx;
+		cmd.dy = dy;
+		return cmd;
+	}
+
+	public static Command recolor(int id, int rgb) {
+		Command cmd = new Command(RECOLOR);
+		cmd.id = id;
+		cmd.rgb = rgb;
+		return cmd;
+	}
+
+	/**
+	 * A command that just names a shape ID (REMOVE, BOTTOM, TOP) or the curID (CUR_ID)
+	 */
+	public static Command withId(byte op, int id) {
+		Command cmd = new Command(op);
+		cmd.id = id;
+		return cmd;
+	}
+
+	/**
+	 * A command with no arguments (SAVE_STATE, UNDO, REDO, CLEAR)
+	 */
+	public static Command of(byte op) {
+		return new Command(op);
+	}
+
+	public static Command print(String text) {
+		Command cmd = new Command(PRINT);
+		cmd.text = text;
+		return cmd;
+	}
+
+	/**
+	 * Marks where a client is in the server's sequence of edits (see OpLog)
+	 */
+	public static Command seq(long seq, long epoch) {
+		Command cmd = new Command(SEQ);
+		cmd.seq = seq;
+		cmd.epoch = epoch;
+		return cmd;
+	}
+
+	/**
+	 * Starts a freehand stroke in the given color. The key names the stroke in the points and end that follow (an
+	 * editor sends 0; the server gives each stroke its own when passing it on).
+	 */
+	public static Command stroke(int key, int rgb) {
+		Command cmd = new Command(STROKE);
+		cmd.id = key;
+		cmd.rgb = rgb;
+		return cmd;
+	}
+
+	/**
+	 * The next points of a stroke, carried as a Polyline of just those points
+	 */
+	public static Command strokePoints(int key, Polyline points) {
+		Command cmd = new Command(STROKE_POINTS);
+		cmd.id = key;
+		cmd.shape = points;
+		return cmd;
+	}
+
+	/**
+	 * Finishes a stroke. From an editor, the tolerance says how far (in hundredths of a pixel) the server may
+	 * simplify it before adding it to the sketch; from the server, it's 0.
+	 */
+	public static Command strokeEnd(int key, int tolerance) {
+		Command cmd = new Command(STROKE_END);
+		cmd.id = key;
+		cmd.tolerance = tolerance;
+		return cmd;
+	}
+
+	public byte getOp() {
+		return op;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getDx() {
+		return dx;
+	}
+
+	public int getDy() {
+		return dy;
+	}
+
+	public int getRGB() {
+		return rgb;
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getTolerance() {
+		return tolerance;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns whether this is one of the edits the server broadcasts, each of which it numbers (see OpLog).
+	 * Clients that track sequence numbers count these to know where they are between "seq" markers.
+	 */
+	public boolean isLogged() {
+		switch (op) {
+		case ADD:
+		case ADD_AT: // As part of an undo or redo
+		case MOVE:
+		case RECOLOR:
+		case REMOVE:
+		case BOTTOM:
+		case TOP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether this is part of a stroke being streamed, which only goes to clients that speak version 2 or later.
+	 */
+	public boolean isStroke() {
+		return op == STROKE || op == STROKE_POINTS || op == STROKE_END;
+	}
+
+	/**
+	 * Applies the command to the given sketch, if it's one that edits a sketch (everything but SAVE_STATE, UNDO, REDO,
+	 * CLEAR, PRINT, and SEQ, which the server and the editor each handle in their own way).
+	 */
+	public void applyTo(Sketch sketch) {
+		switch (op) {
+		case ADD:
+			sketch.addShape(shape);
+			break;
+		case ADD_AT:
+			sketch.updateShape(id, shape);
+			break;
+		case MOVE:
+			sketch.moveShape(id, dx, dy);
+			break;
+		case RECOLOR:
+			sketch.recolorShape(id, rgb);
+			break;
+		case REMOVE:
+			sketch.removeShape(id);
+			break;
+		case BOTTOM:
+			sketch.sendToBottom(id);
+			break;
+		case TOP:
+			sketch.sendToTop(id);
+			break;
+		case CUR_ID:
+			sketch.setCurID(id);
+			break;
+		}
+	}
+
+	/**
+	 * Records the text line the command was decoded from, so it is echoed exactly as received (see TextCodec).
+	 */
+	void setLine(String line) {
+		this.line = line;
+	}
+
+	/**
+	 * Returns the type token a shape's toString() starts with ("rect", "ellipse", "segment", or "polyline").
+	 */
+	public static String shapeName(Shape shape) {
+		if (shape instanceof Rectangle) return "rect";
+		if (shape instanceof Ellipse) return "ellipse";
+		if (shape instanceof Segment) return "segment";
+		return "polyline";
+	}
+
+	/**
+	 * Returns the text line for the command (without the newline).
+	 */
+	@Override
+	public String toString() {
+		if (line == null) {
+			byte[] bytes = textBytes();
+			line = new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+		}
+		return line;
+	}
+
+	/**
+	 * Returns the command encoded as a text line, newline included.
+	 */
+	public byte[] textBytes() {
+		if (textBytes == null) textBytes = line != null ? TextCodec.encode(line) : TextCodec.encode(this);
+		return textBytes;
+	}
+
+	/**
+	 * Returns the command encoded as a binary frame, length prefix included.
+	 */
+	public byte[] frameBytes() {
+		if (frame == null) frame = BinaryProtocol.encode(this);
+		return frame;
+	}
+
+	/**
+	 * Returns the command in the given protocol's encoding.
+	 */
+	public byte[] encoded(boolean binary) {
+		return binary ? frameBytes() : textBytes();
+	}
+}
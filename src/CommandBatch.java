@@ -0,0 +1,32 @@
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Commands broadcast together (one server tick's, or the edits of an undo or redo; see SketchServer), sent to each
+ * client as a single message so that its writer flushes them together. Each encoding is built once, for however many clients use it.
+ */
+public class CommandBatch implements Message {
+	private List<Command> commands;
+	private byte[] text, frames;	// the two encodings, once built
+
+	public CommandBatch(List<Command> commands) {
+		this.commands = commands;
+	}
+
+	public List<Command> getCommands() {
+		return commands;
+	}
+
+	public synchronized byte[] encoded(boolean binary) {
+		if (binary ? frames == null : text == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (Command cmd : commands) {
+				byte[] bytes = cmd.encoded(binary);
+				out.write(bytes, 0, bytes.length);
+			}
+			if (binary) frames = out.toByteArray();
+			else text = out.toByteArray();
+		}
+		return binary ? frames : text;
+	}
+}
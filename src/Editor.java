@@ -1,7 +1,16 @@
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 
 import javax.swing.*;
 
@@ -20,6 +29,14 @@ public class Editor extends JFrame {
 	// or ask a friend for their IP address
 
 	private static final int width = 800, height = 800;		// canvas size
+	// How far (in pixels) a finished freehand stroke may be straightened to drop points; 0 keeps every point
+	private static final double SIMPLIFY = Double.parseDouble(System.getProperty("sketch.simplify", "1"));
+	// Milliseconds between batches of commands from the server being applied (and repainted), about a frame
+	private static final int FRAME_INTERVAL = Integer.getInteger("sketch.frameInterval", 16);
+	private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(FRAME_INTERVAL);
+	private static final int TILE_SHIFT = 7, TILE = 1 << TILE_SHIFT;	// the canvas is drawn in 128-pixel tiles
+	private static final ForkJoinPool RENDERERS = new ForkJoinPool();	// draws the tiles, a thread per core
+	private static final double ZOOM_STEP = 1.25;	// how much a notch of the mouse wheel zooms in or out
 
 	// Current settings on GUI
 	public enum Mode {
@@ -36,6 +53,38 @@ public class Editor extends JFrame {
 	private int movingId = -1;					// current shape id (if any; else -1) being moved
 	private Point drawFrom = null;				// where the drawing started
 	private Point moveFrom = null;				// where object is as it's being dragged
+	private Map<Integer, Polyline> liveStrokes = new HashMap<Integer, Polyline>();	// others' strokes being drawn
+
+	// The part of the sketch shown: the mouse wheel zooms about the pointer, and dragging with any button but the
+	// left pans. The canvas is in screen coordinates and everything else (the sketch, the mouse once it's handled)
+	// in sketch coordinates; the view converts between them.
+	private Viewport view = Viewport.ACTUAL_SIZE;
+	private Point panFrom = null;				// where the pointer was as the view is dragged (null if it isn't)
+	// Zoomed out, each stroke is drawn simplified to within half a screen pixel, which looks the same with a fraction
+	// of the points, and scaled to screen pixels; kept for the strokes in the sketch (which never change) until the
+	// zoom does (see zoomedOut())
+	private Map<Shape, Polyline> decimated = new WeakHashMap<Shape, Polyline>();
+
+	// The sketch's shapes, drawn into images that are kept until the sketch changes, so a repaint while drawing or
+	// dragging just copies them: those below the shape being moved (all of them, if none is), and those above it.
+	// The images are cut into tiles; when the sketch changes, just the part of each tile it changed in is drawn
+	// again, the tiles all at once on every core. They're of what's in view, so zooming or panning draws them again;
+	// only the shapes in view are looked at (see Sketch.forEachShapeIn()).
+	private Tile[] tiles;						// row by row
+	private int tileColumns, tileRows;
+	private int lifted = -1;					// the shape being moved, drawn on its own between the two (-1 if none)
+	private boolean layersStale = true;			// whether every tile needs drawing again
+	private JComponent canvas;					// what they're drawn for
+
+	// Commands from the server wait here for the event dispatch thread, which applies whatever has arrived at most
+	// once a frame and repaints once for the lot; so the communicator's thread never waits on drawing, and the
+	// sketch is only ever touched by the one thread
+	private final ConcurrentLinkedQueue<Command> inbox = new ConcurrentLinkedQueue<Command>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();	// whether drain() is already due to run
+	private long lastDrain = System.nanoTime();	// when it last ran
+	private Timer drainTimer;					// holds it off until the next frame
+	// Queued when the connection to the server is lost, to drop the others' strokes after what came before it
+	private static final Command CONNECTION_LOST = Command.of(Command.STROKE_END);
 	
 
 	// Communication
@@ -46,12 +95,13 @@ public class Editor extends JFrame {
 
 		sketch = new Sketch();
 
+		// Helpers to create the canvas and GUI (buttons, etc.); the canvas first, as what the server sends repaints it
+		canvas = setupCanvas();
+
 		// Connect to server
 		comm = new EditorCommunicator(serverIP, this);
 		comm.start();
 
-		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -80,21 +130,31 @@ public class Editor extends JFrame {
 		
 		canvas.setPreferredSize(new Dimension(width, height));
 
+		// The handlers get the points in the sketch
 		canvas.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent event) {
-				handlePress(event.getPoint());
+				if (SwingUtilities.isLeftMouseButton(event)) handlePress(view.toSketch(event.getPoint()));
+				else panFrom = event.getPoint(); // Any other button drags the view
 			}
 
 			public void mouseReleased(MouseEvent event) {
-				handleRelease();
+				if (SwingUtilities.isLeftMouseButton(event)) handleRelease();
+				else panFrom = null;
 			}
 		});		
 
 		canvas.addMouseMotionListener(new MouseAdapter() {
 			public void mouseDragged(MouseEvent event) {
-				handleDrag(event.getPoint());
+				if (panFrom != null) {
+					setView(view.panned(event.getX() - panFrom.x, event.getY() - panFrom.y));
+					panFrom = event.getPoint();
+				}
+				if (SwingUtilities.isLeftMouseButton(event)) handleDrag(view.toSketch(event.getPoint()));
 			}
 		});
+
+		canvas.addMouseWheelListener(event ->
+				setView(view.zoomedAt(event.getPoint(), Math.pow(ZOOM_STEP, -event.getPreciseWheelRotation()))));
 		
 		return canvas;
 	}
@@ -181,15 +241,315 @@ public class Editor extends JFrame {
 	 * Draws all the shapes in the sketch,
 	 * along with the object currently being drawn in this editor (not yet part of the sketch)
 	 */
-	public synchronized void drawSketch(Graphics g) {
-		for(int id : sketch.getShapes().navigableKeySet()){
-			sketch.getShapes().get(id).draw(g);
+	public void drawSketch(Graphics g) {
+		java.awt.Rectangle clip = g.getClipBounds(); // (Not our Rectangle) the area being repainted, if limited
+		int width = canvas.getWidth(), height = canvas.getHeight();
+		if (width > 0 && height > 0) {
+			int columns = (width + TILE - 1) >> TILE_SHIFT, rows = (height + TILE - 1) >> TILE_SHIFT;
+			if (layersStale || columns != tileColumns || rows != tileRows) resetTiles(columns, rows);
+			drawTiles();
+			for (Tile tile : tiles) { // Only those in the clip need copying
+				if (tile.overlaps(clip)) g.drawImage(tile.below, tile.x, tile.y, null);
+			}
+			Shape moving = lifted == -1 ? null : sketch.getShape(lifted);
+			if (moving != null) drawInView(g, moving);
+			if (lifted != -1) {
+				for (Tile tile : tiles) {
+					if (tile.overlaps(clip)) g.drawImage(tile.above, tile.x, tile.y, null);
+				}
+			}
+		}
+		Bounds shown = clip == null ? null : view.inSketch(new Bounds(clip.x, clip.y,
+				clip.x + clip.width - 1, clip.y + clip.height - 1));
+		for (Polyline stroke : liveStrokes.values()) { // Others' strokes on top, where they'll be once added
+			if (shown == null || stroke.getBounds().intersects(shown)) drawInView(g, stroke);
 		}
-		if(curr != null) curr.draw(g);
+		if(curr != null) drawInView(g, curr);
 		// repaint(); no need for paintComponent to (indirectly) call repaint(), instead just repaint()
 		// when significant actions occur (i.e. shapes are changed)
 	}
 
+	/**
+	 * Draws a shape that's in sketch coordinates on the canvas, where the view puts it.
+	 */
+	private void drawInView(Graphics g, Shape shape) {
+		Graphics2D inView = (Graphics2D) g.create();
+		view.transform(inView);
+		shape.draw(inView);
+		inView.dispose();
+	}
+
+	/**
+	 * One square of the canvas, with its part of the images drawSketch() copies from
+	 */
+	private static class Tile {
+		final int x, y;					// its upper left corner on the canvas
+		BufferedImage below, above;		// its part of each image (above only while a shape is being moved)
+		Bounds dirty = Bounds.EMPTY;	// the part of it the sketch has changed in since they were drawn
+		List<Shape> lower = new ArrayList<Shape>(), upper = new ArrayList<Shape>();	// what to draw in each, in order
+
+		Tile(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * Adds the part of the area that's in the tile to what's to be drawn again.
+		 */
+		void markDirty(Bounds area) {
+			Bounds in = new Bounds(Math.max(x, area.minX), Math.max(y, area.minY),
+					Math.min(x + TILE - 1, area.maxX), Math.min(y + TILE - 1, area.maxY));
+			if (!in.isEmpty()) dirty = dirty.union(in);
+		}
+
+		boolean overlaps(java.awt.Rectangle clip) {
+			return clip == null || (x < clip.x + clip.width && x + TILE > clip.x && y < clip.y + clip.height
+					&& y + TILE > clip.y);
+		}
+
+		/**
+		 * Draws the dirty part of its images again, with the shapes put in its lists (which it then empties), as the
+		 * view shows them.
+		 */
+		void draw(Viewport view) {
+			draw(below, lower, view);
+			if (above != null) draw(above, upper, view);
+			lower.clear();
+			upper.clear();
+			dirty = Bounds.EMPTY;
+		}
+
+		private void draw(BufferedImage image, List<Shape> shapes, Viewport view) {
+			Graphics2D g = image.createGraphics();
+			g.translate(-x, -y); // In canvas coordinates
+			// Shapes partly in the dirty part are cut off at its edges
+			g.clipRect(dirty.minX, dirty.minY, dirty.maxX - dirty.minX + 1, dirty.maxY - dirty.minY + 1);
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(dirty.minX, dirty.minY, dirty.maxX - dirty.minX + 1, dirty.maxY - dirty.minY + 1);
+			g.setComposite(AlphaComposite.SrcOver);
+			Graphics2D inView = (Graphics2D) g.create(); // and in sketch coordinates, like the shapes
+			view.transform(inView);
+			Graphics2D scaled = (Graphics2D) g.create(); // and for strokes already scaled, zoomed out
+			view.translateScaled(scaled);
+			for (Shape shape : shapes) {
+				Bounds bounds = shape.getBounds();
+				if (view.scale >= 1) {
+					shape.draw(inView);
+				} else if (shape instanceof Polyline) { // Zoomed out, strokes are put in the lists scaled
+					shape.draw(scaled);
+				} else if (view.sizeOnScreen(bounds) <= 1) { // Zoomed out to within a pixel: just a dot
+					g.setColor(shape.getColor());
+					g.fillRect(view.screenX(bounds.minX), view.screenY(bounds.minY), 1, 1);
+				} else {
+					shape.draw(inView);
+				}
+			}
+			scaled.dispose();
+			inView.dispose();
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Draws a run of tiles, splitting it in halves (down to single tiles) for the pool's threads to share.
+	 */
+	private static class TileJob extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Tile> tiles;
+		private final int from, to;
+		private final Viewport view;
+
+		TileJob(List<Tile> tiles, int from, int to, Viewport view) {
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+			this.view = view;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				tiles.get(from).draw(view);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new TileJob(tiles, from, mid, view), new TileJob(tiles, mid, to, view));
+		}
+	}
+
+	/**
+	 * Makes sure there are tiles enough to cover the canvas, with an above image each if a shape is being moved, and
+	 * marks them all to be drawn.
+	 */
+	private void resetTiles(int columns, int rows) {
+		if (tiles == null || columns != tileColumns || rows != tileRows) {
+			tiles = new Tile[columns * rows];
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++) {
+					tiles[r * columns + c] = new Tile(c << TILE_SHIFT, r << TILE_SHIFT);
+				}
+			}
+			tileColumns = columns;
+			tileRows = rows;
+		}
+		for (Tile tile : tiles) {
+			if (tile.below == null) tile.below = newLayer(TILE, TILE);
+			if (lifted == -1) tile.above = null;
+			else if (tile.above == null) tile.above = newLayer(TILE, TILE);
+			tile.markDirty(new Bounds(tile.x, tile.y, tile.x + TILE - 1, tile.y + TILE - 1));
+		}
+		layersStale = false;
+	}
+
+	/**
+	 * Draws the parts of the tiles the sketch has changed in. The shapes are sorted into the tiles whose dirty parts
+	 * they overlap in one pass over those in the dirty area, in drawing order: into each tile's lower list until the
+	 * shape being moved (which is left out), and its upper list after it. Then the tiles are drawn in parallel, and
+	 * this waits for them all.
+	 */
+	private void drawTiles() {
+		List<Tile> dirty = new ArrayList<Tile>();
+		Bounds area = Bounds.EMPTY;
+		for (Tile tile : tiles) {
+			if (tile.dirty.isEmpty()) continue;
+			dirty.add(tile);
+			area = area.union(tile.dirty);
+		}
+		if (dirty.isEmpty()) return;
+		Viewport view = this.view;
+		// Shapes off the canvas, or outside the parts being drawn, are never even looked at
+		sketch.forEachShapeIn(view.inSketch(area), (id, shape) -> {
+			if (id == lifted) return;
+			boolean upper = lifted != -1 && id > lifted; // Everything after the shape being moved goes above it
+			Bounds bounds = view.onScreen(shape.getBounds());
+			int c1 = Math.max(0, bounds.minX >> TILE_SHIFT), c2 = Math.min(tileColumns - 1, bounds.maxX >> TILE_SHIFT);
+			int r1 = Math.max(0, bounds.minY >> TILE_SHIFT), r2 = Math.min(tileRows - 1, bounds.maxY >> TILE_SHIFT);
+			if (shape instanceof Polyline && view.scale < 1) shape = zoomedOut((Polyline) shape, view);
+			for (int r = r1; r <= r2; r++) {
+				for (int c = c1; c <= c2; c++) {
+					Tile tile = tiles[r * tileColumns + c];
+					if (bounds.intersects(tile.dirty)) (upper ? tile.upper : tile.lower).add(shape);
+				}
+			}
+		});
+		RENDERERS.invoke(new TileJob(dirty, 0, dirty.size(), view));
+	}
+
+	/**
+	 * Returns the stroke as it's drawn at the view's zoom, which must be below actual size: simplified to within half
+	 * a pixel, then with each point multiplied by the scale (and those that end up where the one before is dropped).
+	 * So it's drawn in screen pixels with no more than a translation (see Viewport.translateScaled()); Java2D draws
+	 * lines that way several times faster than through a scaling transform.
+	 */
+	private Polyline zoomedOut(Polyline stroke, Viewport view) {
+		return decimated.computeIfAbsent(stroke, s -> {
+			Polyline simpler = stroke.simplified(0.5 / view.scale);
+			int[] xs = new int[simpler.size()], ys = new int[simpler.size()];
+			int n = 0;
+			for (int i = 0; i < simpler.size(); i++) {
+				int x = (int) Math.floor(simpler.getX(i) * view.scale);
+				int y = (int) Math.floor(simpler.getY(i) * view.scale);
+				if (n > 0 && x == xs[n-1] && y == ys[n-1]) continue;
+				xs[n] = x;
+				ys[n++] = y;
+			}
+			if (n == 1 && simpler.size() > 1) { // All in one pixel; kept as a segment, so it's drawn as a dot
+				xs[n] = xs[0];
+				ys[n++] = ys[0];
+			}
+			return new Polyline(xs, ys, n, stroke.getColor());
+		});
+	}
+
+	/**
+	 * Shows another part of the sketch, or at another zoom; everything in view is drawn again.
+	 */
+	private void setView(Viewport next) {
+		if (next.scale != view.scale) decimated.clear(); // Simplified for the old zoom
+		view = next;
+		layersStale = true;
+		canvas.repaint();
+	}
+
+	/**
+	 * Marks the area of the sketch to be drawn again, in each of the tiles it's in view in.
+	 */
+	private void markDirty(Bounds area) {
+		if (tiles == null || area.isEmpty()) return; // (No tiles yet, and they'll all be drawn)
+		area = view.onScreen(area);
+		int c1 = Math.max(0, area.minX >> TILE_SHIFT), c2 = Math.min(tileColumns - 1, area.maxX >> TILE_SHIFT);
+		int r1 = Math.max(0, area.minY >> TILE_SHIFT), r2 = Math.min(tileRows - 1, area.maxY >> TILE_SHIFT);
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				tiles[r * tileColumns + c].markDirty(area);
+			}
+		}
+	}
+
+	/**
+	 * Returns a new transparent image of the given size.
+	 */
+	private BufferedImage newLayer(int width, int height) {
+		GraphicsConfiguration config = canvas.getGraphicsConfiguration();
+		// Preferably one laid out like the screen, which copies onto it the fastest
+		return config != null ? config.createCompatibleImage(width, height, Transparency.TRANSLUCENT)
+				: new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+
+	/**
+	 * Returns the part of the given bounds that's on the canvas.
+	 */
+	private Bounds onCanvas(Bounds area) {
+		Bounds on = new Bounds(Math.max(0, area.minX), Math.max(0, area.minY),
+				Math.min(canvas.getWidth() - 1, area.maxX), Math.min(canvas.getHeight() - 1, area.maxY));
+		return on.isEmpty() ? Bounds.EMPTY : on;
+	}
+
+	/**
+	 * Repaints just the part of the canvas the given bounds in the sketch are in view in, if any.
+	 */
+	private void repaintArea(Bounds area) {
+		area = onCanvas(view.onScreen(area));
+		if (!area.isEmpty()) canvas.repaint(area.minX, area.minY, area.maxX - area.minX + 1, area.maxY - area.minY + 1);
+	}
+
+	/**
+	 * Returns the bounds of the shape a command from the server applies to, as the sketch stands (empty if none).
+	 * Taken before and after applying it, they cover everywhere the command changes the picture.
+	 */
+	private Bounds touched(Command cmd) {
+		switch (cmd.getOp()) {
+		case Command.ADD:
+			return cmd.getShape().getBounds();
+		case Command.ADD_AT: // Possibly in place of another
+			return cmd.getShape().getBounds().union(boundsOf(cmd.getId()));
+		case Command.MOVE:
+		case Command.RECOLOR:
+		case Command.REMOVE:
+		case Command.BOTTOM:
+		case Command.TOP:
+			return boundsOf(cmd.getId());
+		default:
+			return Bounds.EMPTY;
+		}
+	}
+
+	private Bounds boundsOf(int id) {
+		Shape shape = sketch.getShape(id);
+		return shape == null ? Bounds.EMPTY : shape.getBounds();
+	}
+
+	/**
+	 * Sets the shape being moved (-1 for none), which is left out of the images and drawn on its own, so that the
+	 * moves coming back from the server as it's dragged don't mean drawing everything again.
+	 */
+	private void lift(int id) {
+		if (id == lifted) return;
+		lifted = id;
+		layersStale = true;
+	}
+
 	// Helpers for event handlers
 	
 	/**
@@ -212,6 +572,8 @@ public class Editor extends JFrame {
 		 * There is also no need to repaint on recolor or delete because those make server requests, and
 		 * server requests will invoke repaint() downstream (see appropriate method below)
 		 */
+		// The uppermost shape clicked on (-1 if none), for the modes that act on one; looked up once per click
+		int hit = mode == Mode.DRAW || mode == Mode.MOVE ? -1 : sketch.getUppermostCollision(p.x, p.y);
 		// If draw mode is active
 		if (mode == Mode.DRAW) {
 			comm.requestSaveState(); // Request save state
@@ -230,6 +592,7 @@ public class Editor extends JFrame {
 			} else if (shapeType.equals("freehand")) {
 				curr = new Polyline(new ArrayList<Point>(), color); // Start a new polyline
 				((Polyline) curr).addPoint(p); // and add the current point to it (it's degenerate at this stage)
+				comm.requestStrokeStart(color.getRGB(), p.x, p.y); // Let the others watch it being drawn, if they can
 			
 			// This should never run, but just in case the client was somehow modified and the shape
 			// type is something not recognized, notify the user in console
@@ -242,39 +605,40 @@ public class Editor extends JFrame {
 			// Find the ID of the uppermost shape that was clicked on, if it exists
 			movingId = sketch.getUppermostCollision(p.x, p.y);
 			if (movingId != -1) comm.requestSaveState(); // If user actually clicked something, request save state
+			lift(movingId); // Draw it on its own while it's dragged
 			moveFrom = p; // and set moveFrom to the initial point
 		}
 		
 		// If recolor mode is active
 		else if (mode == Mode.RECOLOR) {
 			// If the user actually clicked something, request a save state
-			if (sketch.getUppermostCollision(p.x, p.y) != -1) comm.requestSaveState();
+			if (hit != -1) comm.requestSaveState();
 			// Request a recolor for the current color and the uppermost shape that was clicked on
-			comm.requestRecolor(sketch.getUppermostCollision(p.x, p.y), color.getRGB());
+			comm.requestRecolor(hit, color.getRGB());
 		}
 		
 		// If delete mode is active
 		else if (mode == Mode.DELETE) {
 			// If the user actually clicked something, request a save state
-			if (sketch.getUppermostCollision(p.x, p.y) != -1) comm.requestSaveState();
+			if (hit != -1) comm.requestSaveState();
 			// Request a removal of the uppermost shape that was clicked on
-			comm.requestRemove(sketch.getUppermostCollision(p.x, p.y));
+			comm.requestRemove(hit);
 		}
 		
 		// If send to bottom mode is active
 		else if (mode == Mode.BOTTOM) {
 			// If the user actually clicked something, request a save state
-			if (sketch.getUppermostCollision(p.x, p.y) != -1) comm.requestSaveState();
+			if (hit != -1) comm.requestSaveState();
 			// Request a send-to-bottom of the uppermost shape that was clicked on
-			comm.requestSendToBottom(sketch.getUppermostCollision(p.x, p.y));
+			comm.requestSendToBottom(hit);
 		}
 		
 		// If send to top mode is active
 		else if (mode == Mode.TOP) {
 			// If the user actually clicked something, request a save state
-			if (sketch.getUppermostCollision(p.x, p.y) != -1) comm.requestSaveState();
+			if (hit != -1) comm.requestSaveState();
 			// Request a send-to-top of the uppermost shape that was clicked on
-			comm.requestSendToTop(sketch.getUppermostCollision(p.x, p.y));
+			comm.requestSendToTop(hit);
 		}
 		
 		// This should never run, but just in case the client was somehow modified and the editor mode
@@ -292,6 +656,8 @@ public class Editor extends JFrame {
 	private void handleDrag(Point p) {
 		// If draw mode is active
 		if (mode == Mode.DRAW) {
+			// The part of the canvas to repaint: where the shape was, and (below) where it is now
+			Bounds changed = curr == null ? Bounds.EMPTY : curr.getBounds();
 			
 			// Ellipse, rectangle, and segment again behave relatively similarly
 			if (shapeType.equals("ellipse")) {
@@ -307,13 +673,22 @@ public class Editor extends JFrame {
 			// While polyline behaves somewhat differently
 			} else if (shapeType.equals("freehand")) {
 				// Cast to polyline because superclass Shape doesn't have addPoint() method
-				((Polyline) curr).addPoint(p); // Then just add this point as the next point in the polyline
+				Polyline polyline = (Polyline) curr;
+				// Then just add this point as the next point in the polyline, unless the mouse is where it was
+				int last = polyline.size() - 1;
+				changed = Bounds.EMPTY; // The rest of it is already there; just the new segment, if any
+				if (!polyline.endsAt(p.x, p.y)) {
+					changed = Bounds.of(polyline.getX(last), polyline.getY(last), p.x, p.y, 1);
+					polyline.addPoint(p);
+					comm.requestStrokePoint(p.x, p.y);
+				}
 				
 			// Just in case the shape type is for whatever reason something else
 			} else {
 				System.err.println("Undefined shape type."); // Notify the user
 			}
-			repaint(); // Repaint as the state of the canvas has changed
+			if (curr != null && !(curr instanceof Polyline)) changed = changed.union(curr.getBounds());
+			repaintArea(changed); // Repaint as the state of the canvas has changed, just where it has
 		}
 		
 		// IF move mode is active
@@ -322,7 +697,7 @@ public class Editor extends JFrame {
 				// Request the shape to move the dragged displacement from the previous point
 				comm.requestMove(movingId, p.x-moveFrom.x, p.y-moveFrom.y);
 				moveFrom = p; // Now set the current point as the new previous point
-				repaint(); // and repaint as the state of the canvas has changed
+				// No need to repaint; it moves (and is repainted) when the server sends the move back
 			}
 		}
 		
@@ -341,13 +716,22 @@ public class Editor extends JFrame {
 	private void handleRelease() {
 		// If draw mode is active
 		if (mode == Mode.DRAW){
-			comm.requestAdd(curr); // Request the shape to be formally broadcast by the server
+			Bounds drawn = curr == null ? Bounds.EMPTY : curr.getBounds(); // To stop showing it there
+			// A freehand stroke streamed as it was drawn just needs finishing; the server adds it
+			if (!(curr instanceof Polyline && comm.requestStrokeEnd(SIMPLIFY))) {
+				// A freehand stroke has a point per mouse event, most of them along nearly straight stretches; drop
+				// those before it's sent, which the server and every editor would otherwise store, send and hit-test
+				if (curr instanceof Polyline && SIMPLIFY > 0) curr = ((Polyline) curr).simplified(SIMPLIFY);
+				comm.requestAdd(curr); // Request the shape to be formally broadcast by the server
+			}
 			curr = null; // and delete the temporary shape
-			repaint(); // Repaint to immediately stop rendering the temporary shape (just to be safe)
+			repaintArea(drawn); // Repaint to immediately stop rendering the temporary shape (just to be safe)
 		
 		// If move mode is active
 		} else if (mode == Mode.MOVE) {
+			comm.flushMoves(); // Make sure the rest of the drag reaches the server now rather than a frame later
 			movingId = -1; // Set the movingId to -1 to denote no objects currently being moved
+			lift(-1); // Back in with the rest (which looks just the same, so nothing to repaint)
 		}
 		
 		// If either delete or recolor mode is active, just do nothing (and no need to repaint)
@@ -358,149 +742,149 @@ public class Editor extends JFrame {
 	}
 	
 	/**
-	 * Parses input broadcasted from the server and uses it to appropriately update this
+	 * Parses a text line broadcasted from the server and uses it to appropriately update this
 	 * editor's internal sketch based on the server requests.
-	 * Essentially identical to the server's own parseLine() to update the master sketch.
+	 * Shares the server's own parser (TextCodec) to update the master sketch.
 	 * 
 	 * @param input	the input string as broadcasted by the server
 	 */
-	public synchronized void parseLine(String input) {
-		String[] words = input.split(" "); // Split the input string into tokens based on the space character
-		switch (words[0]) { // switch-case conditional based on the first token in the input string
-		case "add": // If it's add
-			String newShape = words[1]; // Find the shape type in the second token
-			switch (newShape) { // and use a second switch-case conditional based on the shape type
-			
-				// Once again, the rectangle, ellipse, and segment behave generally similarly
-				// Because their toString() representations contain a fixed number of tokens (constant
-				// amount of information required to properly reconstruct the shape)
-				case "rect": // If the shape is a rectangle
-					// Construct a Rectangle based on the remaining tokens (which in the toString() representation
-					// of a rectangle contain its essential information, in the order required)
-					sketch.addShape(new Rectangle(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Break to prevent falling through (only breaks out of shape type switch case)
-				case "ellipse": // If the shape is an ellipse
-					// Construct an Ellipse based on the remaining tokens, as above
-					sketch.addShape(new Ellipse(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Prevent falling through
-				case "segment": // If the shape is a segment
-					// Construct a Segment based on the remaining tokens, as above
-					sketch.addShape(new Segment(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Prevent falling through
-				
-				// While Polylines behave differently because they require a variable-length amount of information
-				case "polyline":
-					List<Point> locs = new ArrayList<Point>(); // Start a temporary list of point locations
-					// Now remove the [] in the second token from the toString() representation of the Polyline
-					// and split the rest of the token into points in the form x,y
-					String[] points = words[2].substring(1, words[2].length()-1).split(";");
-					
-					// For each String-represented point in points
-					for (String s : points) {
-						String[] point = s.split(","); // Split the point String across the comman
-						// and construct a Point based on the information inside the String, add it to locs
-						locs.add(new Point(Integer.parseInt(point[0]),Integer.parseInt(point[1])));
-					}
-					
-					// Once the point list is done being populated, construct the Polyline and add it to sketch
-					sketch.addShape(new Polyline(locs, new Color(Integer.parseInt(words[3]))));
-					break; // Prevent falling through
+	public void parseLine(String input) {
+		Command cmd = TextCodec.decode(input);
+		if (cmd == null) { // Nothing we know how to handle, so just notify the user
+			System.err.println("Invalid line \"" + input + "\" from server.");
+			return;
+		}
+		receive(cmd);
+	}
+
+	/**
+	 * Takes a command broadcasted from the server (as a text line or a binary frame), to be applied to this
+	 * editor's internal sketch on the event dispatch thread along with whatever else arrives by the next frame.
+	 * Called from the communicator's thread, which it never holds up.
+	 * 
+	 * @param cmd	the command as broadcasted by the server
+	 */
+	public void receive(Command cmd) {
+		inbox.add(cmd);
+		if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+	}
+
+	/**
+	 * Stops showing the others' strokes being drawn, once the commands already received are applied; called from the
+	 * communicator's thread when the connection to the server is lost. Their ends won't come: getting back in with a
+	 * resume only sends the edits missed (a snapshot's clear would drop them anyway).
+	 */
+	public void connectionLost() {
+		receive(CONNECTION_LOST);
+	}
+
+	/**
+	 * Applies the commands waiting in the inbox, in order, then repaints everywhere they changed, once.
+	 * Runs at most once per FRAME_INTERVAL, so a burst of commands is applied in a few batches rather than one
+	 * (and a repaint) at a time; and a batch that runs past a frame leaves the rest for the next, so mouse events
+	 * and painting get their turn in between.
+	 */
+	private void drain() {
+		long now = System.nanoTime(), wait = lastDrain + FRAME_NANOS - now;
+		if (wait > 0) { // Too soon after the last batch; come back when the frame is up
+			if (drainTimer == null) {
+				drainTimer = new Timer(0, e -> drain());
+				drainTimer.setRepeats(false);
+			}
+			drainTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+			drainTimer.restart();
+			return;
+		}
+		lastDrain = now;
+		drainScheduled.set(false); // Before taking any, so anything that arrives from here on is sure to get a turn
+		Bounds changed = Bounds.EMPTY;
+		Command cmd;
+		while ((cmd = inbox.poll()) != null) {
+			changed = changed.union(apply(cmd));
+			if (System.nanoTime() - now > FRAME_NANOS) { // Out of time; the rest next frame
+				if (!inbox.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+					SwingUtilities.invokeLater(this::drain);
+				}
+				break;
 			}
+		}
+		repaintArea(changed);
+	}
+
+	/**
+	 * Applies a command broadcasted from the server to this editor's internal sketch.
+	 * 
+	 * @param cmd	the command as broadcasted by the server
+	 * @return	where on the canvas it changed things, to be repainted
+	 */
+	private Bounds apply(Command cmd) {
+		byte op = cmd.getOp();
+		Bounds changed = touched(cmd); // Where on the canvas things change: where the shape was, and (below) is now
+		switch (op) {
+		case Command.ADD:
+			cmd.applyTo(sketch);
 			// Notify the user that someone has added a new shape
-			System.out.println("New " + words[1] + " added at ID " + (sketch.getCurID() - 1));
-			break; // Break out of first switch-case (will repaint below)
-			
-		case "move": // If the first token was move
-			// Just move the shape in the sketch based on the information given by the broadcast
-			sketch.moveShape(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]));
-			break; // Break to prevent falling through (breaks out of first switch case)
-			
-		case "recolor": // If the first token was recolor
-			// Just recolor the shape in the sketch based on the information given in the broadcast
-			sketch.recolorShape(Integer.parseInt(words[1]), new Color(Integer.parseInt(words[2])));
-			break; // Break to precent falling through
-			
-		case "remove": // If the first token was remove
-			// Remove the appropriate shape from the sketch based on the broadcast
-			sketch.removeShape(Integer.parseInt(words[1]));
-			break; // Break to prevent falling through
-			
-		// Sometimes we must set the curID manually; this occurs if the curID in the master sketch is not
-		// the same as the ID of the most recent object (i.e. a more recent object was deleted)
-		case "curId": // If the first token was curId
-			sketch.setCurID(Integer.parseInt(words[1])); // Set the CurID as appropriate
-			break; // Break to prevent falling through
-		
-		case "bottom": // If the first token was bottom
-			sketch.sendToBottom(Integer.parseInt(words[1]));
+			System.out.println("New " + Command.shapeName(cmd.getShape()) + " added at ID " + (sketch.getCurID() - 1));
 			break;
-			
-		case "top": // If the first token was top
-			sketch.sendToTop(Integer.parseInt(words[1]));
+
+		case Command.ADD_AT: // Adding a shape with a specific ID, not the default automatic ID-finding behavior
+			cmd.applyTo(sketch);
+			// Let the user know that a new shape has been ID-added and the ID it was added at
+			// Provides some level of useful data without flooding the console
+			System.out.println("New " + Command.shapeName(cmd.getShape()) + " added at server-given ID " + cmd.getId());
 			break;
-			
-		case "print": // If the first token was print
-			System.out.println(input.split(" ", 2)[1]); // Print everything after "print "
+
+		case Command.PRINT:
+			System.out.println(cmd.getText());
 			break;
-		
-		case "clear": // If the first token was clear
+
+		case Command.CLEAR:
 			sketch = new Sketch(); // Clear the sketch
+			liveStrokes.clear(); // A fresh start (after reconnecting, say); any ends in between were missed
 			break;
-			
-		// If the first token was none of the above, the input string should represent an ID-based add
-		// (i.e. adding a shape with a specific ID and not the default automatic ID-finding behavior)
-		default: // Most of the code here will be similar to "add" case because it's mostly the same as an add
-			String IDShape = words[1]; // Get the token representing the shape type
-			switch (IDShape) { // Second switch-case conditional based on the shape type
-			
-				// Once again, the rectangle, ellipse, and segment behave similarly
-				case "rect": // If it's a rectangle
-					// Use Sketch.updateShape() to add the new rectangle at a specific ID; when the server
-					// broadcasts an ID-based add, the first token is the ID to place it at
-					sketch.updateShape(Integer.parseInt(words[0]), new Rectangle(Integer.parseInt(words[2]),
-							Integer.parseInt(words[3]), Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6])))); // Otherwise similar to add above
-					break; // Break to prevent falling through
-				case "ellipse": // If it's a rectangle
-					// Update the shape in the map appropriately
-					sketch.updateShape(Integer.parseInt(words[0]), new Ellipse(Integer.parseInt(words[2]),
-							Integer.parseInt(words[3]), Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Break to prevent falling through
-				case "segment":
-					sketch.updateShape(Integer.parseInt(words[0]), new Segment(Integer.parseInt(words[2]),
-							Integer.parseInt(words[3]), Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break;
-					
-				// And the polyline behaves somewhat differently
-				case "polyline":
-					// First populate the list of points just like with "add"
-					List<Point> locs = new ArrayList<Point>();
-					String[] points = words[2].substring(1, words[2].length()-1).split(";");
-					for(String s : points){
-						String[] point = s.split(",");
-						locs.add(new Point(Integer.parseInt(point[0]),Integer.parseInt(point[1])));
-					}
-					
-					// Now ID-add based on the given ID and the newly found list of points
-					sketch.updateShape(Integer.parseInt(words[0]), new Polyline(locs,
-							new Color(Integer.parseInt(words[3]))));
-					break; // Break to prevent falling through
+
+		case Command.STROKE: // Someone has started a freehand stroke; show it as it's drawn
+			liveStrokes.put(cmd.getId(), new Polyline(new ArrayList<Point>(), Colors.of(cmd.getRGB())));
+			break;
+
+		case Command.STROKE_POINTS:
+			Polyline stroke = liveStrokes.get(cmd.getId());
+			if (stroke == null) break; // Started before we got here
+			Polyline points = (Polyline) cmd.getShape();
+			if (stroke.size() > 0 && points.size() > 0) { // The new points join on from the last one
+				changed = Bounds.of(stroke.getX(stroke.size()-1), stroke.getY(stroke.size()-1),
+						points.getX(0), points.getY(0), 1);
 			}
-			// Let the user know that a new shape has been ID-added and the ID it was added at
-			// Provides some level of useful data without flooding the console
-			System.out.println("New " + words[1] + " added at server-given ID " + words[0]);
-			// No need to break; since this is the last case
+			for (int i = 0; i < points.size(); i++) {
+				stroke.addPoint(points.getX(i), points.getY(i));
+				changed = changed.including(points.getX(i), points.getY(i), 1);
+			}
+			break;
+
+		case Command.STROKE_END: // Added to the sketch just before this (or given up on)
+			if (cmd == CONNECTION_LOST) { // All of them, rather (see connectionLost())
+				for (Polyline lost : liveStrokes.values()) changed = changed.union(lost.getBounds());
+				liveStrokes.clear();
+				break;
+			}
+			Polyline ended = liveStrokes.remove(cmd.getId());
+			if (ended != null) changed = ended.getBounds();
+			break;
+
+		default: // move, recolor, remove, bottom, top, and curId just edit the sketch
+			cmd.applyTo(sketch);
+		}
+		if (op == Command.CLEAR) { // Everything's changed
+			layersStale = true;
+			return view.inSketch(new Bounds(0, 0, canvas.getWidth() - 1, canvas.getHeight() - 1));
 		}
-		repaint(); // Repaint because almost all inputs broadcast from the server will change the state of the canvas
+		changed = changed.union(touched(cmd));
+		// The part of the images the sketch has changed in is drawn again (unless it's just the shape being moved,
+		// which is drawn on its own anyway), and that part of the canvas repainted
+		boolean liftedOnly = (op == Command.MOVE || op == Command.RECOLOR) && cmd.getId() == lifted;
+		if (!liftedOnly && !cmd.isStroke()) markDirty(changed);
 		// System.out.println(sketch.getShapes()); Useful for debugging, but floods the console
+		return changed;
 	}
 	
 	/**
@@ -1,7 +1,10 @@
-import java.awt.Color;
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles communication to/from the server for the editor
@@ -12,21 +15,48 @@ import java.util.Scanner;
  * @author Jared Cole, finished problem
  */
 public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
+	// Which protocol to offer the server: "binary" (default) or "text" (no handshake lines, for older servers)
+	private static final boolean OFFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("sketch.protocol"));
+	// How many times in a row to try getting back in after losing the server; 0 gives up right away
+	private static final int RECONNECT_ATTEMPTS = Integer.getInteger("sketch.reconnect", 10);
+	// How long to gather up drag moves before sending them as one, in milliseconds (about a frame); 0 sends each
+	private static final int MOVE_INTERVAL = Integer.getInteger("sketch.moveInterval", 16);
+	// How long to gather up a freehand stroke's points before streaming them as one chunk, in milliseconds
+	private static final int STROKE_INTERVAL = Integer.getInteger("sketch.strokeInterval", 33);
+
+	private String serverIP;		// where the server is, for reconnecting
+	private String password;		// what got us in, for reconnecting
+	private OutputStream out;		// to server
+	private WireReader in;			// from server
 	protected Editor editor;		// handling communication for
+	private boolean binary;			// whether requests go to the server as binary frames rather than text lines
+	private int version;			// the protocol version the server confirmed (0 for text)
+	// Where we are in the server's sequence of edits (see OpLog): the last one applied (-1 until the server says,
+	// and again while a snapshot is coming in, until the sequence number at its end), and the server run it's from
+	private long lastSeq = -1;
+	private long epoch;
+	private boolean sequenced;		// whether the server has said where we are, so there's a sequence to get back into
+
+	// Drag moves not yet sent: the shape being moved (-1 if none) and how far it has moved since the last send
+	private int pendingId = -1;
+	private int pendingDx, pendingDy;
+	private boolean flushScheduled;	// whether flushMoves() is already due to run
+	private ScheduledExecutorService flusher;	// sends pending moves (and stroke points) once their interval is up
+
+	// The freehand stroke being streamed, if any: whether one is, and the points not yet sent
+	private boolean stroking;
+	private int[] strokeXs = new int[64], strokeYs = new int[64];
+	private int strokeCount;
+	private boolean strokeFlushScheduled;	// whether flushStroke() is already due to run
 
 	/**
 	 * Establishes connection and in/out pair
 	 */
 	public EditorCommunicator(String serverIP, Editor editor) {
+		this.serverIP = serverIP;
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+			connect();
 		}
 		catch (IOException e) {
 			System.err.println("couldn't connect");
@@ -35,10 +65,78 @@ public class EditorCommunicator extends Thread {
 	}
 
 	/**
-	 * Sends message to the server
+	 * Opens a connection to the server and sends the handshake lines that go before the password (see Handshake)
 	 */
-	public synchronized void send(String msg) {
-		out.println(msg);
+	private synchronized void connect() throws IOException {
+		System.out.println("connecting to " + serverIP + "...");
+		Socket sock = new Socket(serverIP, 4242);
+		out = new BufferedOutputStream(sock.getOutputStream());
+		in = new WireReader(sock.getInputStream());
+		binary = false; // Text until this server confirms otherwise
+		version = 0;
+		stroking = false; // A stroke started before is lost with the old connection
+		System.out.println("...connected");
+		// A server that predates the handshake would take these lines for the password, so use
+		// -Dsketch.protocol=text with those
+		if (OFFER_BINARY) {
+			sendLine("proto " + BinaryProtocol.VERSION); // Offer the binary protocol
+			// Ask for sequence numbers, or if we know where we left off, for just what we missed since
+			sendLine(lastSeq < 0 ? "seq" : "resume " + lastSeq + " " + epoch);
+		}
+	}
+
+	/**
+	 * Tries to get back in after losing the server, asking to resume where we left off.
+	 *
+	 * @param attempt	how many tries this makes in a row, to back off a little more each time
+	 * @return	whether we're connected again
+	 */
+	private boolean reconnect(int attempt) {
+		try {
+			Thread.sleep(500L * attempt);
+			connect();
+			sendLine(password);
+			return true;
+		}
+		catch (IOException | InterruptedException e) {
+			System.err.println("couldn't reconnect (attempt " + attempt + " of " + RECONNECT_ATTEMPTS + ")");
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a raw text line to the server (used for the handshake)
+	 */
+	public synchronized void sendLine(String line) {
+		try {
+			out.write(TextCodec.encode(line));
+			out.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends message to the server, in whichever protocol was negotiated.
+	 * Any moves still being gathered go first, so the server sees requests in the order they were made.
+	 */
+	public synchronized void send(Command msg) {
+		flushMoves();
+		write(msg);
+	}
+
+	/**
+	 * Writes a message to the server right away
+	 */
+	private synchronized void write(Command msg) {
+		try {
+			out.write(msg.encoded(binary));
+			out.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
@@ -49,14 +147,19 @@ public class EditorCommunicator extends Thread {
 			// Handle the initial password check
 			editor.parseLine(in.readLine());
 			Scanner sc = new Scanner(System.in);
-			send(sc.nextLine());
+			password = sc.nextLine();
+			sendLine(password);
 			sc.close();	// Only need one line
 
-			String line;
-			// Handle messages
-			while ((line = in.readLine()) != null) {
-				// System.out.println(line); Floods console with lines
-				editor.parseLine(line);
+			// Handle messages until the server hangs up; then, if there's somewhere to pick up from, get back in and
+			// keep going
+			boolean connected = true;
+			int failures = 0; // Reconnections in a row that didn't get us back in
+			while (true) {
+				if (connected && listen()) failures = 0;
+				if (!sequenced || ++failures > RECONNECT_ATTEMPTS) break;
+				if (connected) editor.connectionLost(); // Whatever the others were drawing is gone with it
+				connected = reconnect(failures);
 			}
 		}
 		catch (IOException e) {
@@ -69,6 +172,62 @@ public class EditorCommunicator extends Thread {
 		}
 	}	
 
+	/**
+	 * Handles messages from the server until it hangs up, in text until it confirms a protocol version with a
+	 * "proto" line
+	 *
+	 * @return	whether the server let us in (and said where we are in its sequence) before hanging up
+	 */
+	private boolean listen() {
+		boolean admitted = false;
+		try {
+			boolean binaryIn = false;
+			while (true) {
+				Command cmd;
+				if (binaryIn) {
+					cmd = in.readFrame();
+					if (cmd == null) return admitted; // Server hung up
+				} else {
+					String line = in.readLine();
+					if (line == null) return admitted; // Server hung up
+					// System.out.println(line); Floods console with lines
+					if (line.startsWith("proto ")) {
+						binaryIn = true; // Everything after this line is frames
+						synchronized (this) {
+							sendLine(line); // Echo it to mark where our requests switch to frames too
+							binary = true;
+							version = SketchServer.negotiate(line);
+						}
+						continue;
+					}
+					cmd = TextCodec.decode(line);
+					if (cmd == null) { // Let the editor complain about it
+						editor.parseLine(line);
+						continue;
+					}
+				}
+				// Keep count of where we are: the server numbers each edit it broadcasts, and says where we are
+				// after sending a snapshot or catching us up
+				if (cmd.getOp() == Command.SEQ) {
+					lastSeq = cmd.getSeq();
+					epoch = cmd.getEpoch();
+					sequenced = true;
+					admitted = true;
+				} else if (cmd.getOp() == Command.CLEAR) {
+					// A snapshot, whose adds aren't numbered edits; if it's cut short, only a whole new one will do
+					lastSeq = -1;
+				} else if (cmd.isLogged() && lastSeq >= 0) {
+					lastSeq++;
+				}
+				editor.receive(cmd); // Applied on the event dispatch thread, without waiting for it
+			}
+		}
+		catch (IOException e) {
+			System.err.println("lost connection to server: " + e.getMessage());
+		}
+		return admitted;
+	}
+
 	// Send editor requests to the server
 	
 	/**
@@ -77,8 +236,7 @@ public class EditorCommunicator extends Thread {
 	 * @param shape	the Shape object to be added server-side
 	 */
 	public void requestAdd(Shape shape) {
-		// Print "add" as a command and the shape's toString() representation with the PrintWriter
-		send("add " + shape); // All shapes should be fully reconstructible with their toString()
+		send(Command.add(shape)); // All shapes should be fully reconstructible, as text or binary
 	}
 	
 	/**
@@ -87,7 +245,7 @@ public class EditorCommunicator extends Thread {
 	 * @param id	the id of the shape to be removed
 	 */
 	public void requestRemove(int id) {
-		send("remove " + id); // Print "remove" as a command and give the id to remove
+		send(Command.withId(Command.REMOVE, id)); // "remove" as a command and the id to remove
 	}
 	
 	/**
@@ -98,19 +256,120 @@ public class EditorCommunicator extends Thread {
 	 * @param color	the new color to change it to
 	 */
 	public void requestRecolor(int id, int color) {
-		send("recolor " + id + " " + color); // Print "recolor" as a command and give the id and color
+		send(Command.recolor(id, color)); // "recolor" as a command and the id and color
 	}
 	
 	/**
 	 * Requests the server move the shape with the given id by the given amount, and broadcast the move
 	 * request to all other clients.
+	 * A drag produces a move for every mouse event, so moves of the same shape are added up and sent at most once
+	 * per MOVE_INTERVAL (see flushMoves()).
 	 * 
 	 * @param id	the id of the shape to be moved
 	 * @param dx	the x-axis displacement of the move
 	 * @param dy	the y-axis displacement of the move
 	 */
-	public void requestMove(int id, int dx, int dy) {
-		send("move " + id + " " + dx + " " + dy); // Print "move" as a command, give the id and the displacement
+	public synchronized void requestMove(int id, int dx, int dy) {
+		if (MOVE_INTERVAL <= 0) { // Not coalescing
+			send(Command.move(id, dx, dy)); // "move" as a command, the id and the displacement
+			return;
+		}
+		if (id != pendingId) flushMoves(); // A different shape; send the last one's moves first
+		pendingId = id;
+		pendingDx += dx; // Add this move onto the ones not yet sent
+		pendingDy += dy;
+		if (!flushScheduled) { // Send them all once the interval is up
+			flushScheduled = true;
+			flusher().schedule(this::flushMoves, MOVE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the thread that sends gathered moves and stroke points when their interval is up, starting it if need be
+	 */
+	private synchronized ScheduledExecutorService flusher() {
+		if (flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "move-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return flusher;
+	}
+
+	/**
+	 * Sends the moves gathered by requestMove() as a single move; called when the interval is up and when the drag
+	 * ends, so the server always ends up with the whole displacement.
+	 */
+	public synchronized void flushMoves() {
+		flushScheduled = false;
+		if (pendingId == -1) return; // Nothing gathered
+		if (pendingDx != 0 || pendingDy != 0) write(Command.move(pendingId, pendingDx, pendingDy));
+		pendingId = -1;
+		pendingDx = 0;
+		pendingDy = 0;
+	}
+	
+	/**
+	 * Starts streaming a freehand stroke to the server, which shows it to the other editors as it's drawn, if the
+	 * server speaks a protocol version that can (see SketchServer.handleStroke()).
+	 *
+	 * @return	whether the stroke is being streamed; if not, it's to be sent whole with requestAdd() when done
+	 */
+	public synchronized boolean requestStrokeStart(int rgb, int x, int y) {
+		if (!binary || version < BinaryProtocol.STROKES) return false;
+		flushMoves();
+		write(Command.stroke(0, rgb));
+		stroking = true;
+		strokeCount = 0;
+		requestStrokePoint(x, y);
+		return true;
+	}
+
+	/**
+	 * Adds a point to the stroke being streamed. Points are gathered and sent as one chunk at most once per
+	 * STROKE_INTERVAL, like moves (see requestMove()).
+	 */
+	public synchronized void requestStrokePoint(int x, int y) {
+		if (!stroking) return;
+		if (strokeCount == strokeXs.length) {
+			strokeXs = Arrays.copyOf(strokeXs, strokeCount * 2);
+			strokeYs = Arrays.copyOf(strokeYs, strokeCount * 2);
+		}
+		strokeXs[strokeCount] = x;
+		strokeYs[strokeCount++] = y;
+		if (STROKE_INTERVAL <= 0) {
+			flushStroke();
+		} else if (!strokeFlushScheduled) {
+			strokeFlushScheduled = true;
+			flusher().schedule(this::flushStroke, STROKE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the stroke points gathered by requestStrokePoint() as one chunk.
+	 */
+	public synchronized void flushStroke() {
+		strokeFlushScheduled = false;
+		if (!stroking || strokeCount == 0) return;
+		write(Command.strokePoints(0, new Polyline(Arrays.copyOf(strokeXs, strokeCount),
+				Arrays.copyOf(strokeYs, strokeCount), strokeCount, null)));
+		strokeCount = 0;
+	}
+
+	/**
+	 * Finishes the stroke being streamed; the server adds it to the sketch, simplified to within the given tolerance
+	 * (in pixels; see Polyline.simplified()).
+	 *
+	 * @return	whether there was a stroke being streamed (on this connection) to finish
+	 */
+	public synchronized boolean requestStrokeEnd(double tolerance) {
+		if (!stroking) return false;
+		flushStroke();
+		write(Command.strokeEnd(0, (int) Math.round(tolerance * 100)));
+		stroking = false;
+		return true;
 	}
 	
 	/**
@@ -119,7 +378,7 @@ public class EditorCommunicator extends Thread {
 	 * @param id	the id of the shape to be sent to bottom
 	 */
 	public void requestSendToBottom(int id) {
-		send("bottom " + id);
+		send(Command.withId(Command.BOTTOM, id));
 	}
 	
 	/**
@@ -128,27 +387,27 @@ public class EditorCommunicator extends Thread {
 	 * @param id	the id of the shape to be brought to top
 	 */
 	public void requestSendToTop(int id) {
-		send("top " + id);
+		send(Command.withId(Command.TOP, id));
 	}
 	
 	/**
 	 * Requests the server to save the current state.
 	 */
 	public void requestSaveState() {
-		send("save_state");
+		send(Command.of(Command.SAVE_STATE));
 	}
 	
 	/**
 	 * Requests the server to undo the last action taken.
 	 */
 	public void requestUndo() {
-		send("undo");
+		send(Command.of(Command.UNDO));
 	}
 	
 	/**
 	 * Requests the server to redo the last action taken.
 	 */
 	public void requestRedo() {
-		send("redo");
+		send(Command.of(Command.REDO));
 	}
 }
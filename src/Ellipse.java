@@ -11,15 +11,14 @@ import java.awt.Graphics;
  */
 public class Ellipse implements Shape {
 	private int x1, y1, x2, y2;		// upper left and lower right
+	private Bounds bounds;			// the same, as a Bounds for getBounds()
 	private Color color;
 
 	/**
 	 * An "empty" ellipse, with only one point set so far
 	 */
 	public Ellipse(int x1, int y1, Color color) {
-		this.x1 = x1; this.x2 = x1;
-		this.y1 = y1; this.y2 = y1;
-		this.color = color;
+		this(x1, y1, x1, y1, color);
 	}
 
 	/**
@@ -39,10 +38,29 @@ public class Ellipse implements Shape {
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);		
+		bounds = new Bounds(this.x1, this.y1, this.x2, this.y2);
+	}
+
+	// Getters for the corners, so the shape can be written in binary (see BinaryProtocol)
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
 	}
 
 	@Override
 	public boolean contains(int x, int y) {
+		if (!bounds.contains(x, y)) return false; // Outside the box, so outside the ellipse; skip the arithmetic
 		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
 		double dx = x - (x1 + a); // horizontal distance from center
 		double dy = y - (y1 + b); // vertical distance from center
@@ -51,10 +69,16 @@ public class Ellipse implements Shape {
 		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
 	}
 
+	@Override
+	public Bounds getBounds() {
+		return bounds;
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds = bounds.moved(dx, dy);
 	}
 
 	@Override
@@ -0,0 +1,78 @@
+/**
+ * What a client asked for in the lines it sent before its password, for either kind of server communicator.
+ * Editors that predate these lines just send the password, and get the original text protocol with no sequence numbers.
+ *
+ *   proto N			the newest protocol version the client speaks (see BinaryProtocol)
+ *   seq				the client tracks sequence numbers, so its snapshots should end with a "seq" marker (see OpLog)
+ *   resume N EPOCH		as seq, and the client has seen everything up to N from the server run EPOCH, so it only
+ *   					needs what it missed since
+ *
+ * The lines come in that order: "proto" first, then at most one of the other two. Whatever doesn't fit is the
+ * password, so a client that sends the handshake can have any password at all; one that doesn't can have any but
+ * one starting with "proto ", which the server won't set (see canBePassword()).
+ */
+public class Handshake {
+	private int version;			// protocol version to use (0 for text)
+	private boolean sequenced;		// whether the client tracks sequence numbers
+	private long resumeSeq = -1;	// the last sequence number the client saw, or -1 if it's starting fresh
+	private long resumeEpoch;		// the server run that number came from
+	private int lines;				// how many lines have been offered
+
+	/**
+	 * Takes in one line from before the password.
+	 *
+	 * @return	true if it was a handshake line, false if it should be taken as the password
+	 */
+	public boolean offer(String line) {
+		switch (lines++) {
+		case 0: // Only a client that opens with "proto" speaks the handshake at all
+			if (!line.startsWith("proto ")) return false;
+			version = SketchServer.negotiate(line);
+			return true;
+		case 1:
+			break;
+		default: // Past the handshake, so the password, however much it looks like a handshake line
+			return false;
+		}
+		if (line.equals("seq")) {
+			sequenced = true;
+		} else if (line.startsWith("resume ")) {
+			sequenced = true;
+			try {
+				String[] words = line.split(" ");
+				resumeSeq = Long.parseLong(words[1]);
+				resumeEpoch = Long.parseLong(words[2]);
+			}
+			catch (RuntimeException e) {
+				resumeSeq = -1; // Garbled; just send a snapshot
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the line can be a password: not if an editor that sends no handshake would have it taken for a
+	 * handshake line.
+	 */
+	public static boolean canBePassword(String line) {
+		return !line.startsWith("proto ");
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isSequenced() {
+		return sequenced;
+	}
+
+	public long getResumeSeq() {
+		return resumeSeq;
+	}
+
+	public long getResumeEpoch() {
+		return resumeEpoch;
+	}
+}
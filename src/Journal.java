@@ -0,0 +1,335 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the master sketch on disk, so a restarted server picks up where it left off: every edit the server broadcasts
+ * is appended to a journal, and every so often the whole sketch is written out as a snapshot, after which the journal
+ * up to that point is no longer needed. On startup, the latest snapshot is loaded and the journal after it replayed.
+ *
+ * Appends are handed to a writer thread, which writes whatever has built up since it last wrote and then forces it
+ * to disk once for the lot (group commit), so a burst of moves costs one fsync rather than one each.
+ *
+ * Files, in the data directory:
+ *   snapshot-<seq>.bin	the sketch as of sequence number seq (see SnapshotFile), written as snapshot.tmp and
+ *							renamed once complete; only the latest is kept
+ *   journal-<seq>.log		the edits from sequence number seq on, until the next file's
+ */
+public class Journal {
+	/**
+	 * How hard to try to keep edits from being lost in a crash
+	 */
+	public enum Durability {
+		ASYNC,	// written as they come, but only forced to disk with each snapshot; a crash can lose recent edits
+		GROUP,	// forced to disk by the writer thread, once per batch; a crash can lose the last few milliseconds
+		SYNC	// forced to disk before the edit is broadcast
+	}
+
+	private static final int JOURNAL_MAGIC = 0x534b4a31;	// "SKJ1"
+	// Record types: one command, or a whole sketch (written for undo and redo before those were sent as edits; still
+	// read back, but no longer written)
+	public static final byte EDIT = 0, RESET = 1;
+
+	/**
+	 * One record read back from the journal
+	 */
+	public static class Record {
+		public final byte type;
+		public final long seq;
+		public final byte[] payload;	// an EDIT's frame, or a RESET's snapshot frames (see BinaryProtocol)
+
+		Record(byte type, long seq, byte[] payload) {
+			this.type = type;
+			this.seq = seq;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * What was on disk at startup
+	 */
+	public static class Recovery {
+		public long epoch;							// the server run the sequence numbers belong to (0 if none)
+		public long snapshotSeq;					// the sequence number the snapshot is at (0 if there's none)
+		public SnapshotFile snapshot;				// the latest snapshot, mapped, or null if there's none
+		public List<Record> tail = new ArrayList<Record>();	// the journal after it, in order
+	}
+
+	/**
+	 * Something for the writer thread to do: write a record, or start a new journal file
+	 */
+	private static class Entry {
+		final byte[] record;
+		final long rollTo;	// the first sequence number of the new file, or -1
+
+		Entry(byte[] record, long rollTo) {
+			this.record = record;
+			this.rollTo = rollTo;
+		}
+	}
+
+	private File dir;
+	private Durability durability;
+	private long epoch;
+	private LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private FileChannel channel;	// the journal file being written; only the writer thread touches it
+	private long queued;			// entries handed to the writer so far
+	private long done;				// entries the writer has finished with (written, and forced unless ASYNC)
+	private boolean failed;			// whether the writer has given up
+
+	public Journal(File dir, Durability durability) throws IOException {
+		this.dir = dir;
+		this.durability = durability;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can't create " + dir);
+	}
+
+	/**
+	 * Reads back the latest snapshot and the journal after it. A record torn by a crash ends the journal there, and is
+	 * cut off so nothing is appended after it.
+	 */
+	public Recovery recover() throws IOException {
+		Recovery recovery = new Recovery();
+		File[] snapshots = files("snapshot-", ".bin");
+		if (snapshots.length > 0) { // Mapped rather than read, so this takes no longer for a bigger sketch
+			File latest = snapshots[snapshots.length - 1];
+			try {
+				recovery.snapshot = SnapshotFile.map(latest);
+			}
+			catch (IOException e) {
+				throw new IOException(latest + ": " + e.getMessage(), e);
+			}
+			recovery.epoch = recovery.snapshot.getEpoch();
+			recovery.snapshotSeq = recovery.snapshot.getSeq();
+		}
+		for (File file : files("journal-", ".log")) {
+			long length = file.length(), good = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() != JOURNAL_MAGIC) throw new IOException(file + " isn't a journal");
+				long epoch = in.readLong();
+				if (recovery.epoch == 0) recovery.epoch = epoch; // No snapshot yet
+				good = 12;
+				while (good < length) {
+					int size = in.readInt();
+					if (size < 9 || size > length - good - 8) break; // Length garbled, or cut short
+					byte[] record = new byte[size];
+					in.readFully(record);
+					int stored = in.readInt();
+					CRC32 crc = new CRC32();
+					crc.update(record, 0, record.length);
+					if (stored != (int) crc.getValue()) break; // Torn or corrupt; nothing after it can be trusted
+					good += 4 + record.length + 4;
+					ByteBuffer buf = ByteBuffer.wrap(record);
+					byte type = buf.get();
+					long seq = buf.getLong();
+					if (seq > recovery.snapshotSeq) { // Anything before is already in the snapshot
+						recovery.tail.add(new Record(type, seq, Arrays.copyOfRange(record, 9, record.length)));
+					}
+				}
+			}
+			catch (EOFException e) {
+				// Torn by a crash mid-write
+			}
+			if (good < length) {
+				System.out.println("journal " + file.getName() + " ends in a torn record; cutting it off");
+				try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					truncate.truncate(good);
+				}
+				break; // Any later file would leave a gap
+			}
+		}
+		return recovery;
+	}
+
+	/**
+	 * Starts writing: a new journal file from the given sequence number on, for the given server run.
+	 */
+	public void start(long epoch, long firstSeq) {
+		this.epoch = epoch;
+		roll(firstSeq);
+		Thread writer = new Thread(this::writeLoop, "sketch-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Appends an edit; with SYNC durability, returns only once it's on disk.
+	 */
+	public void append(long seq, Command cmd) {
+		add(EDIT, seq, cmd.frameBytes());
+	}
+
+	private void add(byte type, long seq, byte[] payload) {
+		// Record: length, then type, seq, and payload, then a checksum of them
+		byte[] record = new byte[4 + 9 + payload.length + 4];
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		buf.putInt(9 + payload.length).put(type).putLong(seq).put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(record, 4, 9 + payload.length);
+		buf.putInt((int) crc.getValue());
+		long ticket = enqueue(new Entry(record, -1));
+		if (durability == Durability.SYNC) await(ticket);
+	}
+
+	/**
+	 * Has later edits go to a new journal file, starting with the given sequence number.
+	 *
+	 * @return	a ticket for await(), to know when the previous file is complete
+	 */
+	public long roll(long firstSeq) {
+		return enqueue(new Entry(null, firstSeq));
+	}
+
+	/**
+	 * Hands an entry to the writer, or drops it if the writer has given up (as reported then), since nothing would
+	 * ever take it off the queue.
+	 *
+	 * @return	a ticket for await()
+	 */
+	private synchronized long enqueue(Entry entry) {
+		if (failed) return queued; // Nothing to wait for: await() returns at once now
+		queue.add(entry);
+		return ++queued;
+	}
+
+	/**
+	 * Waits until the writer has finished with everything up to the given ticket (or has given up).
+	 */
+	public synchronized void await(long ticket) {
+		boolean interrupted = false;
+		while (done < ticket && !failed) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true; // Finish waiting, but let the caller know
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Writes out everything queued, a batch at a time, forcing each batch to disk unless ASYNC
+	 */
+	private void writeLoop() {
+		List<Entry> batch = new ArrayList<Entry>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch); // Everything else that built up meanwhile
+				for (Entry entry : batch) {
+					if (entry.rollTo >= 0) {
+						openJournal(entry.rollTo);
+					} else {
+						ByteBuffer buf = ByteBuffer.wrap(entry.record);
+						while (buf.hasRemaining()) channel.write(buf);
+					}
+				}
+				if (durability != Durability.ASYNC) channel.force(false); // One fsync for the whole batch
+				synchronized (this) {
+					done += batch.size();
+					notifyAll();
+				}
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// Shutting down
+		}
+		catch (IOException e) {
+			System.err.println("journal write failed; edits are no longer being saved");
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			failed = true;
+			queue.clear(); // What it didn't get to; enqueue() adds no more
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Finishes the current journal file (if any) and starts a new one; called on the writer thread.
+	 */
+	private void openJournal(long firstSeq) throws IOException {
+		if (channel != null) {
+			channel.force(false); // Complete before anything relies on it being superseded
+			channel.close();
+		}
+		File file = new File(dir, String.format("journal-%020d.log", firstSeq));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		if (channel.size() == 0) { // New file (rather than one left from before, if nothing happened in between)
+			ByteBuffer header = ByteBuffer.allocate(12).putInt(JOURNAL_MAGIC).putLong(epoch);
+			header.flip();
+			while (header.hasRemaining()) channel.write(header);
+		}
+	}
+
+	/**
+	 * Writes a snapshot and drops the journal files and older snapshots it makes unnecessary.
+	 *
+	 * @param seq		the sequence number the snapshot is at
+	 * @param image		the snapshot (see SnapshotFile.encode())
+	 * @param rolled	the ticket from the roll() that started a new journal file at seq + 1
+	 */
+	public void writeSnapshot(long seq, ByteBuffer image, long rolled) throws IOException {
+		await(rolled); // The journal up to seq is now complete and on disk
+		File tmp = new File(dir, "snapshot.tmp"), snapshotFile = new File(dir, String.format("snapshot-%020d.bin", seq));
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (image.hasRemaining()) out.write(image);
+			out.force(true);
+		}
+		// Put it in place whole, so a crash leaves either no new snapshot or a complete one
+		Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		// Older snapshots may still be mapped (on some systems that keeps them from being deleted; they go next time)
+		for (File file : files("snapshot-", ".bin")) {
+			if (firstSeq(file) < seq && !file.delete()) System.err.println("couldn't delete " + file);
+		}
+		for (File file : files("journal-", ".log")) {
+			if (firstSeq(file) <= seq && !file.delete()) System.err.println("couldn't delete " + file);
+		}
+	}
+
+	/**
+	 * Writes out and forces whatever is still queued; for shutting down.
+	 */
+	public void close() {
+		long ticket;
+		synchronized (this) {
+			ticket = queued;
+		}
+		await(ticket);
+		try {
+			if (channel != null) channel.force(false);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the journal or snapshot files, oldest first.
+	 */
+	private File[] files(String prefix, String suffix) {
+		File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+		if (files == null) return new File[0];
+		Arrays.sort(files); // The zero-padded names sort by sequence number
+		return files;
+	}
+
+	/**
+	 * Returns the sequence number in a journal or snapshot file's name.
+	 */
+	private static long firstSeq(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - 4));
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * Something the server can send to a client in either protocol: a single Command, or a CommandBatch of them.
+ */
+public interface Message {
+	/**
+	 * Returns the message in the given protocol's encoding: text lines, or binary frames (see BinaryProtocol).
+	 */
+	public byte[] encoded(boolean binary);
+}
@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent edits broadcast by the server, by sequence number, so an editor that drops off briefly can be sent
+ * just what it missed rather than the whole sketch (see SketchServer.encodeCatchUp()).
+ *
+ * Every edit the server broadcasts (see Command.isLogged()), including the ones an undo or redo sends, gets the next
+ * sequence number; a reset, which replaces the whole sketch rather than editing it (only when replaying an old
+ * journal now), takes a number too but empties the log, since nothing before it can be replayed on top of the new
+ * state. Only the last capacity edits are kept.
+ * Not thread-safe; the server only touches it with its lock held.
+ */
+public class OpLog {
+	private Command[] ops;		// ring buffer of edits; the one numbered seq is at seq % ops.length
+	private long first = 1;		// number of the oldest edit still in the log
+	private long last = 0;		// number of the newest edit (or reset); 0 before there are any
+
+	public OpLog(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("op log capacity " + capacity);
+		ops = new Command[capacity];
+	}
+
+	/**
+	 * Numbers an edit and adds it to the log, dropping the oldest edit if the log is full.
+	 *
+	 * @return	the edit's sequence number
+	 */
+	public long append(Command cmd) {
+		last++;
+		ops[(int) (last % ops.length)] = cmd;
+		if (last - first >= ops.length) first++; // Overwrote the oldest
+		return last;
+	}
+
+	/**
+	 * Numbers a reset, which nothing before can be replayed across.
+	 *
+	 * @return	the reset's sequence number
+	 */
+	public long reset() {
+		last++;
+		first = last + 1;
+		for (int i = 0; i < ops.length; i++) ops[i] = null; // Let the old edits be collected
+		return last;
+	}
+
+	/**
+	 * Empties the log and carries on numbering after the given sequence number (after loading a saved sketch).
+	 */
+	public void restart(long seq) {
+		reset();
+		last = seq;
+		first = seq + 1;
+	}
+
+	/**
+	 * Returns the sequence number of the newest edit or reset.
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * Returns the edits after the given sequence number, in order.
+	 *
+	 * @param seq	the last sequence number a client has seen
+	 * @return	the edits it has missed, or null if they are no longer (or were never) all in the log
+	 */
+	public List<Command> since(long seq) {
+		if (seq < first - 1 || seq > last) return null; // Truncated past that point, or from some other history
+		List<Command> missed = new ArrayList<Command>((int) (last - seq));
+		for (long s = seq + 1; s <= last; s++) {
+			missed.add(ops[(int) (s % ops.length)]);
+		}
+		return missed;
+	}
+}
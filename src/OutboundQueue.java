@@ -0,0 +1,110 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A client's bounded queue of outgoing messages, drained by that client's own writer, so that broadcast() only has
+ * to enqueue and one editor on a bad link can't hold up every other editor.
+ * Each entry is one or more complete lines, already encoded, so dropping entries never leaves half a line.
+ */
+public class OutboundQueue {
+	/**
+	 * What to do when a client's queue is full
+	 */
+	public enum Policy {
+		BLOCK,		// make the broadcaster wait for room (every client then goes at the slowest one's pace)
+		RESYNC,		// drop what's queued and send a fresh copy of the whole sketch instead
+		DISCONNECT	// hang up on the client
+	}
+
+	private static final long WAIT_MILLIS = 100;	// how long a blocked add waits before checking the client is still there
+
+	private ArrayBlockingQueue<byte[]> messages;	// encoded lines waiting to be written
+	private Policy policy;							// what to do when messages is full
+	private volatile int resyncs;					// how many times this client has been resynced (read by status lines)
+	private volatile boolean closed;				// whether the client is gone, so nothing will drain messages again
+
+	public OutboundQueue(int capacity, Policy policy) {
+		messages = new ArrayBlockingQueue<byte[]>(capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Encodes a line for sending.
+	 */
+	public static byte[] encode(String line) {
+		return (line + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Queues a message, applying the slow-consumer policy if there's no room for it.
+	 * Callers serialize their adds (the server's broadcast lock, or the communicator's own).
+	 *
+	 * @param msg		the encoded message
+	 * @param snapshot	the encoded full sketch, only computed if the client has to be resynced
+	 * @return	false if the client has fallen too far behind and should be disconnected (a message added after the
+	 * 			queue is closed is just dropped)
+	 */
+	public boolean add(byte[] msg, Supplier<byte[]> snapshot) throws InterruptedException {
+		if (messages.offer(msg)) return true; // The usual case: there's room
+		switch (policy) {
+		case BLOCK:
+			// Wait for the writer to make room, but not for a client that has gone: its writer has stopped, and the
+			// caller may hold the lock its close() is waiting for (see SketchServerCommunicator.close())
+			while (!closed) {
+				if (messages.offer(msg, WAIT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+			}
+			return true;
+		case RESYNC:
+			// Nothing queued matters any more, since the snapshot supersedes it (and includes msg's effect)
+			messages.clear();
+			messages.offer(snapshot.get());
+			resyncs++;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Marks the client gone: drops whatever is queued, which also wakes an add() waiting for room, and makes any add()
+	 * from then on give up rather than wait.
+	 */
+	public void close() {
+		closed = true;
+		messages.clear();
+	}
+
+	/**
+	 * Waits for the next message to write.
+	 */
+	public byte[] take() throws InterruptedException {
+		return messages.take();
+	}
+
+	/**
+	 * Returns the next message to write, or null if there's nothing queued.
+	 */
+	public byte[] poll() {
+		return messages.poll();
+	}
+
+	/**
+	 * Returns how many messages are waiting to be written.
+	 */
+	public int depth() {
+		return messages.size();
+	}
+
+	/**
+	 * Returns how many times the queue overflowed and was replaced with a snapshot.
+	 */
+	public int getResyncs() {
+		return resyncs;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+}
@@ -2,19 +2,125 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A multi-segment Shape, with straight lines connecting "joint" points -- (x1,y1) to (x2,y2) to (x3,y3) ...
+ *
+ * The points are kept as two growable int arrays, x's and y's, rather than a Point object each: a long freehand
+ * stroke takes a fraction of the memory, copies with two array copies, and draws with one drawPolyline().
+ *
+ * A long freehand stroke (more than INDEX_AT points) also keeps a hierarchy of boxes over chunks of its segments (see
+ * Hierarchy), so contains() and draw() can pass over the chunks nowhere near the point or the area being drawn.
  * 
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2016
  * @author CBK, updated Fall 2016
  * @author Jared Cole, implemented
  */
 public class Polyline implements Shape {
-	private List<Point> pointList; // A list of points that serve as endpoints of segments
+	private int[] xs, ys; // The points that serve as endpoints of segments, in order; room for more at the end
+	private int count; // How many points there are
 	private Color color; // The color of the polyline
+	private Bounds bounds; // Around all the points, grown by TOLERANCE; kept up to date as points are added or moved
+	private Hierarchy hierarchy; // Boxes over chunks of the segments, once there are enough of them; else null
 	private static final int TOLERANCE = 3; // Constant for the tolerance of the contains method
+	private static final int INDEX_AT = 64; // Points beyond which the hierarchy is kept
+	
+	/**
+	 * Boxes around chunks of CHUNK segments, then around pairs of those, and so on up to one box around the lot: a
+	 * binary tree kept bottom-up as one array of boxes per level, so it can grow a point at a time while drawing.
+	 * The boxes are kept in the coordinates the polyline had when they were made, along with how far it has moved
+	 * since, so moving it just adds to that.
+	 */
+	private static class Hierarchy {
+		static final int CHUNK = 32;	// segments per leaf: chunk k is the segments from point k*CHUNK to (k+1)*CHUNK
+		int[][] levels = new int[1][];	// each level's boxes, as minX, minY, maxX, maxY; levels[0] are the chunks
+		int[] counts = new int[1];		// boxes in each level
+		int dx, dy;						// how far the points have moved since their boxes were made
+
+		Hierarchy() {
+			levels[0] = new int[16];
+		}
+
+		/**
+		 * Takes in point i, at (x, y), which ends segment i-1, starting at (px, py).
+		 */
+		void add(int i, int x, int y, int px, int py) {
+			x -= dx; y -= dy;
+			int chunk = (i - 1) / CHUNK;
+			if (chunk == counts[0]) { // The first segment of a new chunk, which starts with the previous point
+				append(0, px - dx, py - dy, px - dx, py - dy);
+			}
+			grow(0, chunk, x, y, x, y);
+			// Then each box above it, making a new level on top when the one below has outgrown a single box
+			for (int level = 0, at = chunk; counts[level] > 1; level++, at >>= 1) {
+				if (level + 1 == levels.length) {
+					levels = Arrays.copyOf(levels, level + 2);
+					counts = Arrays.copyOf(counts, level + 2);
+					levels[level + 1] = new int[16];
+				}
+				int[] below = levels[level];
+				int parent = at >> 1, b = 4 * at, left = 8 * parent;
+				if (parent == counts[level + 1]) { // A new box, which starts out around its first child
+					append(level + 1, below[left], below[left+1], below[left+2], below[left+3]);
+				}
+				grow(level + 1, parent, below[b], below[b+1], below[b+2], below[b+3]);
+			}
+		}
+
+		private void append(int level, int minX, int minY, int maxX, int maxY) {
+			int[] boxes = levels[level];
+			if (4 * counts[level] == boxes.length) levels[level] = boxes = Arrays.copyOf(boxes, boxes.length * 2);
+			int b = 4 * counts[level]++;
+			boxes[b] = minX; boxes[b+1] = minY; boxes[b+2] = maxX; boxes[b+3] = maxY;
+		}
+
+		private void grow(int level, int index, int minX, int minY, int maxX, int maxY) {
+			int[] boxes = levels[level];
+			int b = 4 * index;
+			boxes[b] = Math.min(boxes[b], minX); boxes[b+1] = Math.min(boxes[b+1], minY);
+			boxes[b+2] = Math.max(boxes[b+2], maxX); boxes[b+3] = Math.max(boxes[b+3], maxY);
+		}
+
+		/**
+		 * Returns whether the box at the given level and index, grown by margin, overlaps the area from (x1,y1) to
+		 * (x2,y2), inclusive, in the polyline's current coordinates.
+		 */
+		boolean overlaps(int level, int index, int margin, int x1, int y1, int x2, int y2) {
+			int[] boxes = levels[level];
+			int b = 4 * index;
+			return x2 >= boxes[b] + dx - margin && x1 <= boxes[b+2] + dx + margin
+					&& y2 >= boxes[b+1] + dy - margin && y1 <= boxes[b+3] + dy + margin;
+		}
+
+		/**
+		 * Collects the chunks whose boxes, grown by margin, overlap the area, in order.
+		 */
+		void chunks(int margin, int x1, int y1, int x2, int y2, List<Integer> found) {
+			collect(levels.length - 1, 0, margin, x1, y1, x2, y2, found);
+		}
+
+		private void collect(int level, int index, int margin, int x1, int y1, int x2, int y2, List<Integer> found) {
+			if (index >= counts[level] || !overlaps(level, index, margin, x1, y1, x2, y2)) return;
+			if (level == 0) {
+				found.add(index);
+				return;
+			}
+			collect(level - 1, 2 * index, margin, x1, y1, x2, y2, found);
+			collect(level - 1, 2 * index + 1, margin, x1, y1, x2, y2, found);
+		}
+
+		Hierarchy copy() {
+			Hierarchy copy = new Hierarchy();
+			copy.levels = new int[levels.length][];
+			for (int l = 0; l < levels.length; l++) copy.levels[l] = Arrays.copyOf(levels[l], 4 * counts[l]);
+			copy.counts = counts.clone();
+			copy.dx = dx;
+			copy.dy = dy;
+			return copy;
+		}
+	}
 	
 	/**
 	 * Constructs a new Polyline object based on the given pointList and color.
@@ -23,8 +129,51 @@ public class Polyline implements Shape {
 	 * @param color		color of the polyline
 	 */
 	public Polyline(List<Point> pointList, Color color) {
-		this.pointList = pointList;
+		this(new int[Math.max(4, pointList.size())], new int[Math.max(4, pointList.size())], 0, color);
+		for (Point point : pointList) {
+			addPoint(point.x, point.y);
+		}
+	}
+	
+	/**
+	 * Constructs a new Polyline object from the first count points in the given arrays, which it then owns.
+	 * 
+	 * @param xs	the points' x coordinates (with room for more, or not)
+	 * @param ys	the points' y coordinates
+	 * @param count	how many points there are
+	 * @param color	color of the polyline
+	 */
+	public Polyline(int[] xs, int[] ys, int count, Color color) {
+		this.xs = xs;
+		this.ys = ys;
+		this.count = count;
+		this.color = color;
+		bounds = Bounds.EMPTY;
+		for (int i = 0; i < count; i++) {
+			bounds = bounds.including(xs[i], ys[i], TOLERANCE);
+		}
+		if (count > INDEX_AT) index();
+	}
+	
+	/**
+	 * A copy whose bounds (and hierarchy, set after) are already known
+	 */
+	private Polyline(int[] xs, int[] ys, int count, Color color, Bounds bounds) {
+		this.xs = xs;
+		this.ys = ys;
+		this.count = count;
 		this.color = color;
+		this.bounds = bounds;
+	}
+	
+	/**
+	 * Builds the hierarchy over all the points so far.
+	 */
+	private void index() {
+		hierarchy = new Hierarchy();
+		for (int i = 1; i < count; i++) {
+			hierarchy.add(i, xs[i], ys[i], xs[i-1], ys[i-1]);
+		}
 	}
 	
 	/**
@@ -33,7 +182,107 @@ public class Polyline implements Shape {
 	 * @param p	the Point to be added to the polyline
 	 */
 	public void addPoint(Point p) {
-		pointList.add(p);
+		addPoint(p.x, p.y);
+	}
+	
+	/**
+	 * Adds the point (x, y) to the polyline.
+	 */
+	public void addPoint(int x, int y) {
+		if (count == xs.length) { // Out of room; make plenty more, so a long stroke copies only now and then
+			xs = Arrays.copyOf(xs, Math.max(4, count * 2));
+			ys = Arrays.copyOf(ys, Math.max(4, count * 2));
+		}
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+		bounds = bounds.including(x, y, TOLERANCE); // Only ever grows while drawing
+		if (hierarchy != null) hierarchy.add(count - 1, x, y, xs[count - 2], ys[count - 2]);
+		else if (count > INDEX_AT) index(); // Long enough now to be worth it
+	}
+	
+	/**
+	 * Returns how many points there are.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Returns the x coordinate of point i.
+	 */
+	public int getX(int i) {
+		return xs[i];
+	}
+	
+	/**
+	 * Returns the y coordinate of point i.
+	 */
+	public int getY(int i) {
+		return ys[i];
+	}
+	
+	/**
+	 * Returns whether the last point is (x, y), so the editor can skip a mouse event that didn't move.
+	 */
+	public boolean endsAt(int x, int y) {
+		return count > 0 && xs[count-1] == x && ys[count-1] == y;
+	}
+	
+	/**
+	 * Returns a copy with only the points needed to stay within tolerance of this one (Ramer-Douglas-Peucker): the
+	 * two ends are kept, then, between each pair of kept points, the point farthest from the segment joining them, as
+	 * long as it's farther than tolerance. Every point dropped is within tolerance of the simplified line.
+	 */
+	public Polyline simplified(double tolerance) {
+		if (count < 3) return clone();
+		boolean[] keep = new boolean[count];
+		keep[0] = keep[count-1] = true;
+		int[] stack = new int[64]; // Pairs of kept points with points between them still to look at
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = count-1;
+		double limit = tolerance * tolerance;
+		while (top > 0) {
+			int to = stack[--top], from = stack[--top];
+			int farthest = -1;
+			double max = limit;
+			for (int i = from + 1; i < to; i++) {
+				double d = Segment.pointToSegmentDistance2(xs[i], ys[i], xs[from], ys[from], xs[to], ys[to]);
+				if (d > max) {
+					max = d;
+					farthest = i;
+				}
+			}
+			if (farthest < 0) continue; // All close enough to the segment; drop them
+			keep[farthest] = true;
+			if (top + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+			stack[top++] = from; stack[top++] = farthest;
+			stack[top++] = farthest; stack[top++] = to;
+		}
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (keep[i]) n++;
+		}
+		int[] newXs = new int[n], newYs = new int[n];
+		for (int i = 0, j = 0; i < count; i++) {
+			if (keep[i]) {
+				newXs[j] = xs[i];
+				newYs[j++] = ys[i];
+			}
+		}
+		return new Polyline(newXs, newYs, n, color);
+	}
+	
+	/**
+	 * Returns a copy of the points, in order, as Points.
+	 */
+	public List<Point> getPoints() {
+		List<Point> points = new ArrayList<Point>(count);
+		for (int i = 0; i < count; i++) {
+			points.add(new Point(xs[i], ys[i]));
+		}
+		return points;
 	}
 	
 	@Override
@@ -41,8 +290,14 @@ public class Polyline implements Shape {
 	 * Move the Polyline by a given displacement.
 	 */
 	public void moveBy(int dx, int dy) {
-		for (Point point : pointList) {
-			point.translate(dx, dy);
+		for (int i = 0; i < count; i++) {
+			xs[i] += dx;
+			ys[i] += dy;
+		}
+		bounds = bounds.moved(dx, dy);
+		if (hierarchy != null) { // The boxes stay as they are; only the offset to them changes
+			hierarchy.dx += dx;
+			hierarchy.dy += dy;
 		}
 	}
 
@@ -67,12 +322,31 @@ public class Polyline implements Shape {
 	 * Determines whether a given point "collides" (gets close enough to) a polyline based on the constant tolerance.
 	 */
 	public boolean contains(int x, int y) {
-		// Iterate over the first n-1 points in the polyline
-		for (int i = 0; i < pointList.size()-1; i++) {
-			// Check if the segment from point i to point i+1 "collides" with the given point
-			if (Segment.pointToSegmentDistance(x, y, (int) pointList.get(i).getX(),
-					(int) pointList.get(i).getY(), (int) pointList.get(i+1).getX(),
-					(int) pointList.get(i+1).getY()) <= TOLERANCE) { // TOLERANCE upper bound of collision distance
+		if (!bounds.contains(x, y)) return false; // Nowhere near any of it
+		if (hierarchy == null) return contains(x, y, 0, count-1);
+		// Only the chunks whose boxes come within TOLERANCE of the point
+		List<Integer> chunks = new ArrayList<Integer>();
+		hierarchy.chunks(TOLERANCE, x, y, x, y, chunks);
+		for (int chunk : chunks) {
+			int from = chunk * Hierarchy.CHUNK;
+			if (contains(x, y, from, Math.min(from + Hierarchy.CHUNK, count-1))) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Whether the point is close enough to any of the segments from point "from" to point "to"
+	 */
+	private boolean contains(int x, int y, int from, int to) {
+		// Iterate over the points from "from" to the one before "to"
+		for (int i = from; i < to; i++) {
+			int x1 = xs[i], y1 = ys[i], x2 = xs[i+1], y2 = ys[i+1];
+			// Skip the segment if the point is outside its own box (grown by TOLERANCE), which is most of them
+			if (x < Math.min(x1, x2) - TOLERANCE || x > Math.max(x1, x2) + TOLERANCE
+					|| y < Math.min(y1, y2) - TOLERANCE || y > Math.max(y1, y2) + TOLERANCE) continue;
+			// Check if the segment from point i to point i+1 "collides" with the given point (squared distances,
+			// so no square root)
+			if (Segment.pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= TOLERANCE * TOLERANCE) {
 				return true; // Returns true if the given point gets close enough to any segment
 			}
 		}
@@ -80,17 +354,44 @@ public class Polyline implements Shape {
 		return false;
 	}
 
+	@Override
+	/**
+	 * Returns the box around all of the points, grown by the contains() tolerance.
+	 */
+	public Bounds getBounds() {
+		return bounds;
+	}
+
 	@Override
 	/**
 	 * Draw the Polyline on the given Graphics object.
 	 */
 	public void draw(Graphics g) {
 		g.setColor(color); // Set the color to the color of the current Polyline
-		// Then iterate over the first n-1 points in the polyline
-		for (int i = 0; i < pointList.size()-1; i++) {
-			// And draw the line segment from point i to point i+1
-			g.drawLine((int) pointList.get(i).getX(), (int) pointList.get(i).getY(),
-					(int) pointList.get(i+1).getX(), (int) pointList.get(i+1).getY());
+		java.awt.Rectangle clip = g.getClipBounds(); // (Not our Rectangle) the area being drawn, if limited
+		if (hierarchy == null || clip == null) {
+			draw(g, 0, count-1);
+			return;
+		}
+		// Only the chunks that show; lines are a pixel wide, so the boxes needn't be grown
+		List<Integer> chunks = new ArrayList<Integer>();
+		hierarchy.chunks(0, clip.x, clip.y, clip.x + clip.width - 1, clip.y + clip.height - 1, chunks);
+		for (int i = 0; i < chunks.size(); ) { // Each run of consecutive chunks in one call
+			int first = chunks.get(i++), last = first;
+			while (i < chunks.size() && chunks.get(i) == last + 1) last = chunks.get(i++);
+			draw(g, first * Hierarchy.CHUNK, Math.min((last + 1) * Hierarchy.CHUNK, count-1));
+		}
+	}
+	
+	/**
+	 * Draws the segments from point "from" to point "to", as one polyline
+	 */
+	private void draw(Graphics g, int from, int to) {
+		if (to <= from) return; // No segments (drawPolyline() would draw a lone point)
+		if (from == 0) {
+			g.drawPolyline(xs, ys, to + 1); // Straight from the arrays
+		} else {
+			g.drawPolyline(Arrays.copyOfRange(xs, from, to + 1), Arrays.copyOfRange(ys, from, to + 1), to - from + 1);
 		}
 	}
 	
@@ -99,9 +400,10 @@ public class Polyline implements Shape {
 	 * Clones this Polyline.
 	 */
 	public Polyline clone() {
-		ArrayList<Point> newList = new ArrayList<Point>();
-		newList.addAll(pointList);
-		return new Polyline(newList, color);
+		// Copies of the arrays, just big enough, since moveBy() changes the points in place
+		Polyline copy = new Polyline(Arrays.copyOf(xs, count), Arrays.copyOf(ys, count), count, color, bounds);
+		if (hierarchy != null) copy.hierarchy = hierarchy.copy(); // Rather than working it all out again
+		return copy;
 	}
 	
 	@Override
@@ -114,10 +416,10 @@ public class Polyline implements Shape {
 		StringBuilder toReturn = new StringBuilder("polyline [");
 		
 		// Now iterate over all points in the polyline
-		for (int i = 0; i < pointList.size(); i++) {
+		for (int i = 0; i < count; i++) {
 			// Append a string of the form "x,y" encapsulating the information in the given point
-			toReturn.append((int) pointList.get(i).getX() + "," + (int) pointList.get(i).getY()
-					+ (i == pointList.size()-1 ? "" : ";")); // Use a ; to delimit points unless this is the last point
+			toReturn.append(xs[i] + "," + ys[i]
+					+ (i == count-1 ? "" : ";")); // Use a ; to delimit points unless this is the last point
 		}
 		
 		// Close the points list with "]" and append the color of the polyline
@@ -12,15 +12,14 @@ import java.awt.Graphics;
  */
 public class Rectangle implements Shape {
 	private int x1, y1, x2, y2;
+	private Bounds bounds;	// the corners, as a Bounds for getBounds()
 	private Color color;
 	
 	/**
 	 * A degenerate point rectangle defined by a single corner
 	 */
 	public Rectangle(int x1, int y1, Color color) {
-		this.x1 = x1; this.x2 = x1;
-		this.y1 = y1; this.y2 = y1;
-		this.color = color;
+		this(x1, y1, x1, y1, color);
 	}
 
 	/**
@@ -40,8 +39,26 @@ public class Rectangle implements Shape {
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);		
+		bounds = new Bounds(this.x1, this.y1, this.x2, this.y2);
 	}
 	
+	// Getters for the corners, so the shape can be written in binary (see BinaryProtocol)
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
 	@Override
 	/**
 	 * Move this Rectangle by a given displacement.
@@ -49,6 +66,12 @@ public class Rectangle implements Shape {
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds = bounds.moved(dx, dy);
+	}
+	
+	@Override
+	public Bounds getBounds() {
+		return bounds;
 	}
 	
 	// Color getters and setters, same as for any other shape
@@ -11,15 +11,15 @@ import java.awt.Graphics;
  */
 public class Segment implements Shape {
 	private int x1, y1, x2, y2;		// two endpoints
+	private Bounds bounds;			// around them, grown by TOLERANCE
 	private Color color;
+	private static final int TOLERANCE = 3;	// how far from the line still counts as on it
 
 	/**
 	 * Initial 0-length segment at a point
 	 */
 	public Segment(int x1, int y1, Color color) {
-		this.x1 = x1; this.x2 = x1;
-		this.y1 = y1; this.y2 = y1;
-		this.color = color;
+		this(x1, y1, x1, y1, color);
 	}
 
 	/**
@@ -28,6 +28,7 @@ public class Segment implements Shape {
 	public Segment(int x1, int y1, int x2, int y2, Color color) {
 		this.x1 = x1; this.y1 = y1;
 		this.x2 = x2; this.y2 = y2;
+		bounds = Bounds.of(x1, y1, x2, y2, TOLERANCE);
 		this.color = color;
 	}
 
@@ -36,6 +37,7 @@ public class Segment implements Shape {
 	 */
 	public void setStart(int x1, int y1) {
 		this.x1 = x1; this.y1 = y1;
+		bounds = Bounds.of(x1, y1, x2, y2, TOLERANCE);
 	}
 	
 	/**
@@ -43,12 +45,31 @@ public class Segment implements Shape {
 	 */
 	public void setEnd(int x2, int y2) {
 		this.x2 = x2; this.y2 = y2;
+		bounds = Bounds.of(x1, y1, x2, y2, TOLERANCE);
 	}
 	
+	// Getters for the endpoints, so the shape can be written in binary (see BinaryProtocol)
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds = bounds.moved(dx, dy);
 	}
 
 	@Override
@@ -63,7 +84,13 @@ public class Segment implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
-		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+		return bounds.contains(x, y) // Most points are nowhere near; the box rules them out
+				&& pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= TOLERANCE * TOLERANCE;
+	}
+
+	@Override
+	public Bounds getBounds() {
+		return bounds;
 	}
 
 	/**
@@ -71,15 +98,22 @@ public class Segment implements Shape {
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
 	 */
 	public static double pointToSegmentDistance(int x, int y, int x1, int y1, int x2, int y2) {
+		return Math.sqrt(pointToSegmentDistance2(x, y, x1, y1, x2, y2));
+	}
+
+	/**
+	 * The same, squared, for comparing against a squared tolerance without taking a square root
+	 */
+	public static double pointToSegmentDistance2(int x, int y, int x1, int y1, int x2, int y2) {
 		double l2 = dist2(x1, y1, x2, y2);
-		if (l2 == 0) return Math.sqrt(dist2(x, y, x1, y1)); // segment is a point
+		if (l2 == 0) return dist2(x, y, x1, y1); // segment is a point
 		// Consider the line extending the segment, parameterized as <x1,y1> + t*(<x2,y2> - <x1,y1>).
 		// We find projection of point <x,y> onto the line. 
 		// It falls where t = [(<x,y>-<x1,y1>) . (<x2,y2>-<x1,y1>)] / |<x2,y2>-<x1,y1>|^2
 		double t = ((x-x1)*(x2-x1) + (y-y1)*(y2-y1)) / l2;
 		// We clamp t from [0,1] to handle points outside the segment.
 		t = Math.max(0, Math.min(1, t));
-		return Math.sqrt(dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1)));
+		return dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1));
 	}
 
 	/**
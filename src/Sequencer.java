@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Puts the commands coming in from every client into one order, and hands them to a single thread -- the only one
+ * that changes the master sketch -- which applies and broadcasts them in that order (see SketchServer).
+ *
+ * The commands wait in a fixed ring of slots, as in the LMAX Disruptor: a client's thread claims the next sequence
+ * number with one atomic increment, fills that number's slot, and marks the slot published, without taking any lock.
+ * The sequencer thread takes everything published since it last looked as one batch, so the busier the server, the
+ * more commands it handles per wakeup (and per lock, and per broadcast).
+ */
+public class Sequencer {
+	public static final int MIN_CAPACITY = 16;	// the smallest ring, whatever capacity is asked for
+	private static final int SPINS = 100;	// times the sequencer looks for more before parking until woken
+
+	private final Command[] slots;
+	private final AtomicLongArray published;	// the sequence number last published in each slot
+	private final int mask;						// sequence number -> slot
+	private final AtomicLong claimed = new AtomicLong(-1);	// the last sequence number handed out
+	private volatile long consumed = -1;		// the last sequence number handled, so its slot can be reused
+	private volatile boolean parked;			// whether the sequencer thread is (about to be) parked
+	private volatile int full;					// how many publishers are waiting for room
+	// What they wait on; a lock rather than synchronized, so a virtual thread waiting for room isn't pinned
+	private final ReentrantLock roomLock = new ReentrantLock();
+	private final Condition room = roomLock.newCondition();
+	// What to run once the ring is half empty, for publishers that would rather not wait at all (see whenRoom())
+	private final ConcurrentLinkedQueue<Runnable> roomWatchers = new ConcurrentLinkedQueue<Runnable>();
+	private Consumer<List<Command>> handler;	// what to do with each batch
+	private Thread thread;
+
+	/**
+	 * @param capacity	how many commands can be waiting; rounded up to a power of two, and at least MIN_CAPACITY
+	 * @param handler	called on the sequencer thread with each batch of commands, in order
+	 */
+	public Sequencer(int capacity, Consumer<List<Command>> handler) {
+		int size = MIN_CAPACITY;
+		while (size < capacity) size <<= 1;
+		slots = new Command[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) published.set(i, -1); // Nothing yet (0 would read as sequence number 0)
+		mask = size - 1;
+		this.handler = handler;
+	}
+
+	/**
+	 * Starts the sequencer thread.
+	 */
+	public void start() {
+		thread = new Thread(this::run, "sketch-sequencer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Adds a command after everything published before it; called from any thread. Commands one thread publishes are
+	 * handled in the order it published them. If the ring is full, waits for room.
+	 */
+	public void publish(Command cmd) {
+		long seq = claimed.incrementAndGet();
+		if (seq - slots.length > consumed) awaitRoom(seq);
+		int slot = (int) seq & mask;
+		slots[slot] = cmd;
+		published.set(slot, seq); // A volatile write: the slot is filled before this, and parked is read after
+		if (parked) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Returns whether n more commands could be published now without waiting for room. Only a hint when other threads
+	 * publish too, since they may take the room first.
+	 */
+	public boolean hasRoom(int n) {
+		return claimed.get() + n - slots.length <= consumed;
+	}
+
+	/**
+	 * Runs the task once at least half the ring is free: at once, on this thread, if it already is; otherwise on the
+	 * sequencer thread as it frees the slots, so the task should be quick. For a publisher that can put off what it
+	 * has to publish, rather than waiting for room in publish().
+	 */
+	public void whenRoom(Runnable task) {
+		roomWatchers.add(task);
+		if (hasRoom(slots.length / 2)) runRoomWatchers(); // In case the sequencer freed it before the task was seen
+	}
+
+	private void runRoomWatchers() {
+		Runnable task;
+		while ((task = roomWatchers.poll()) != null) { // Each is polled, so run, just once, whichever thread runs it
+			task.run();
+		}
+	}
+
+	/**
+	 * Waits until the slot for the given sequence number has been handled one lap ago. Rare, so it simply waits to be
+	 * signalled, rather than keeping the sequencer thread from the CPU by polling.
+	 */
+	private void awaitRoom(long seq) {
+		roomLock.lock();
+		try {
+			full++; // Before looking at consumed, so the sequencer either frees the slot first or sees us and signals
+			while (seq - slots.length > consumed) {
+				if (parked) LockSupport.unpark(thread); // Whatever holds the slot up may be waiting to be seen
+				// Not interruptible, since the sequence number is claimed; an interrupt is still there after
+				room.awaitUninterruptibly();
+			}
+			full--;
+		}
+		finally {
+			roomLock.unlock();
+		}
+	}
+
+	/**
+	 * The sequencer thread: takes whatever has been published, in sequence, and hands it on
+	 */
+	private void run() {
+		List<Command> batch = new ArrayList<Command>();
+		long next = 0;	// the next sequence number to handle
+		int idle = 0;
+		while (true) {
+			// Up to the first number claimed but not yet published; anything after it has to wait its turn
+			for (int slot = (int) next & mask; published.get(slot) == next; slot = (int) next & mask) {
+				batch.add(slots[slot]);
+				slots[slot] = null;
+				next++;
+			}
+			if (!batch.isEmpty()) {
+				try {
+					handler.accept(batch);
+				}
+				catch (RuntimeException e) { // One bad command mustn't stop everyone's edits
+					e.printStackTrace();
+				}
+				batch.clear();
+				consumed = next - 1; // Frees the slots
+				if (full > 0) {
+					roomLock.lock();
+					try {
+						room.signalAll();
+					}
+					finally {
+						roomLock.unlock();
+					}
+				}
+				if (!roomWatchers.isEmpty() && hasRoom(slots.length / 2)) runRoomWatchers();
+				idle = 0;
+			} else if (idle++ < SPINS) {
+				Thread.yield(); // More is often on its way; cheaper to look again than to park
+			} else {
+				parked = true; // Before looking once more, so a publish after the look sees it and wakes us
+				if (published.get((int) next & mask) != next) LockSupport.park(this);
+				parked = false;
+			}
+		}
+	}
+}
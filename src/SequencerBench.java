@@ -0,0 +1,107 @@
+import java.awt.Color;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many commands per second the server applies and broadcasts when several client threads send them at
+ * once: each producer thread plays a client sending moves of its own shape through SketchServer.handle(), as fast as
+ * it can, and each of the clients is an in-process stand-in that just counts what it's sent (encoding it, as a real
+ * client's send() would). A run is timed from the first move until every client has been sent every move.
+ *
+ * Not part of the server; run it by hand to see what a change to the sequencer (or the broadcast path) costs:
+ *
+ *   java SequencerBench [producers clients movesPerProducer]
+ *
+ * With no arguments it runs 1 and 16 producers against 1 and 8 clients, 200,000 moves per producer, five times each
+ * (the first runs warm up the JIT), and reports the best.
+ */
+public class SequencerBench {
+	private static final int RUNS = 5;
+
+	/**
+	 * A client that counts the commands it's sent
+	 */
+	private static class CountingClient implements ClientCommunicator {
+		private final AtomicLong received;
+
+		CountingClient(AtomicLong received) {
+			this.received = received;
+		}
+
+		public void send(Message msg) {
+			msg.encoded(true); // What a binary client's send() does first; cached, so built once per broadcast
+			received.addAndGet(msg instanceof CommandBatch ? ((CommandBatch) msg).getCommands().size() : 1);
+		}
+
+		public void admit() {
+		}
+
+		public boolean streamsStrokes() {
+			return false;
+		}
+
+		public int queueDepth() {
+			return 0;
+		}
+
+		public int resyncs() {
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3) {
+			run(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		for (int producers : new int[] { 1, 16 }) {
+			for (int clients : new int[] { 1, 8 }) {
+				run(producers, clients, 200000);
+			}
+		}
+	}
+
+	/**
+	 * Times RUNS rounds of the given number of producers each sending the given number of moves, on a fresh server
+	 * with the given number of clients, and prints the best rate.
+	 */
+	private static void run(int producers, int clients, int moves) throws Exception {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() { // Without the server's line for every shape added
+			public void write(int b) {
+			}
+		}));
+		SketchServer server;
+		try (ServerSocket listen = new ServerSocket(0)) { // Never accepts; the server just needs one to be made
+			server = new SketchServer(listen);
+		}
+		for (int p = 0; p < producers; p++) { // A shape for each producer to move
+			server.handle(Command.add(new Rectangle(p, p, p + 10, p + 10, Color.BLACK)));
+		}
+		AtomicLong received = new AtomicLong();
+		while (server.getSketch().getCurID() < producers) Thread.yield(); // All added before anyone's listening
+		System.setOut(out);
+		for (int c = 0; c < clients; c++) {
+			server.addCommunicator(new CountingClient(received));
+		}
+		double best = 0;
+		for (int run = 0; run < RUNS; run++) {
+			long expected = received.get() + (long) producers * moves * clients;
+			Thread[] threads = new Thread[producers];
+			long start = System.nanoTime();
+			for (int p = 0; p < producers; p++) {
+				final int id = p;
+				threads[p] = new Thread(() -> {
+					for (int i = 0; i < moves; i++) server.handle(Command.move(id, 1, 1));
+				});
+				threads[p].start();
+			}
+			for (Thread t : threads) t.join();
+			while (received.get() < expected) Thread.yield();
+			best = Math.max(best, (double) producers * moves / (System.nanoTime() - start) * 1e9);
+		}
+		System.out.printf("%2d producers, %d clients: %,.0f moves/s%n", producers, clients, best);
+	}
+}
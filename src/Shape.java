@@ -20,6 +20,12 @@ public interface Shape {
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * @return A box around every point the shape contains and every pixel it draws, kept up to date as the shape
+	 * changes, so callers (and contains() itself) can rule it out without the full test
+	 */
+	public Bounds getBounds();
+
 	/**
 	 * @return The shape's color
 	 */
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * A uniform grid over the plane, for finding the uppermost shape at a point (see Sketch.getUppermostCollision())
+ * without testing every shape: each cell lists the IDs of the shapes whose bounds overlap it, so a point only has to
+ * be tested against the shapes in its own cell, from the greatest ID (the one drawn on top) down. Likewise the shapes
+ * in an area (see Sketch.forEachShapeIn()) are found from the cells it covers.
+ *
+ * Cells are kept in a hash map, so only those with something in them take up room, and the plane has no edge. A shape
+ * big enough to cover more than BIG_CELLS cells goes on a separate list that every lookup checks as well, rather than
+ * into all of those cells.
+ */
+public class ShapeGrid {
+	private static final int SHIFT = 6;			// cells are 2^SHIFT (64) pixels on a side
+	private static final int BIG_CELLS = 1024;	// more than this many cells, and a shape goes on the big list
+
+	/**
+	 * The IDs in one cell (or on the big list), in increasing order
+	 */
+	private static class Cell {
+		int[] ids = new int[4];
+		int count;
+
+		void add(int id) {
+			int at = Arrays.binarySearch(ids, 0, count, id);
+			if (at >= 0) return; // Already here
+			at = -at - 1; // Usually the end, since new shapes get the greatest ID
+			if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+			System.arraycopy(ids, at, ids, at + 1, count - at);
+			ids[at] = id;
+			count++;
+		}
+
+		void remove(int id) {
+			int at = Arrays.binarySearch(ids, 0, count, id);
+			if (at < 0) return;
+			System.arraycopy(ids, at + 1, ids, at, count - at - 1);
+			count--;
+		}
+	}
+
+	private Map<Long, Cell> cells = new HashMap<Long, Cell>();
+	private Cell big = new Cell();
+	private Map<Integer, Bounds> indexed = new HashMap<Integer, Bounds>();	// each shape's bounds, to find its cells
+
+	/**
+	 * Adds a shape's bounds under its ID, replacing what the ID had before.
+	 */
+	public void put(int id, Bounds bounds) {
+		Bounds old = indexed.get(id);
+		if (old != null && sameCells(old, bounds)) { // A small move, say; it's already listed in the right cells
+			indexed.put(id, bounds);
+			return;
+		}
+		remove(id);
+		indexed.put(id, bounds);
+		if (bounds.isEmpty()) return; // Contains nothing (a polyline with no points)
+		int cx1 = bounds.minX >> SHIFT, cy1 = bounds.minY >> SHIFT; // >> rounds down, negatives included
+		int cx2 = bounds.maxX >> SHIFT, cy2 = bounds.maxY >> SHIFT;
+		if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > BIG_CELLS) {
+			big.add(id);
+			return;
+		}
+		for (int cx = cx1; cx <= cx2; cx++) {
+			for (int cy = cy1; cy <= cy2; cy++) {
+				Cell cell = cells.get(key(cx, cy));
+				if (cell == null) cells.put(key(cx, cy), cell = new Cell());
+				cell.add(id);
+			}
+		}
+	}
+
+	/**
+	 * Takes out whatever is under the ID.
+	 */
+	public void remove(int id) {
+		Bounds bounds = indexed.remove(id);
+		if (bounds == null || bounds.isEmpty()) return;
+		int cx1 = bounds.minX >> SHIFT, cy1 = bounds.minY >> SHIFT;
+		int cx2 = bounds.maxX >> SHIFT, cy2 = bounds.maxY >> SHIFT;
+		if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > BIG_CELLS) {
+			big.remove(id);
+			return;
+		}
+		for (int cx = cx1; cx <= cx2; cx++) {
+			for (int cy = cy1; cy <= cy2; cy++) {
+				Long key = key(cx, cy);
+				Cell cell = cells.get(key);
+				if (cell == null) continue;
+				cell.remove(id);
+				if (cell.count == 0) cells.remove(key); // So a sketch that wanders doesn't leave empty cells behind
+			}
+		}
+	}
+
+	/**
+	 * Goes through the IDs whose bounds contain the point, from greatest to least, until one passes the test.
+	 *
+	 * @param hit	the real test, e.g. whether the shape contains the point
+	 * @return	the first ID to pass, or -1 if none does
+	 */
+	public int uppermost(int x, int y, IntPredicate hit) {
+		Cell cell = cells.get(key(x >> SHIFT, y >> SHIFT));
+		int i = cell == null ? -1 : cell.count - 1, j = big.count - 1;
+		while (i >= 0 || j >= 0) { // Both lists at once, greatest ID first
+			int id = j < 0 || (i >= 0 && cell.ids[i] > big.ids[j]) ? cell.ids[i--] : big.ids[j--];
+			if (indexed.get(id).contains(x, y) && hit.test(id)) return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the IDs whose bounds overlap the area, in increasing order; or null if the area covers more cells than
+	 * have anything in them, when going through every shape instead is quicker.
+	 */
+	public int[] overlapping(Bounds area) {
+		if (area.isEmpty()) return new int[0];
+		int cx1 = area.minX >> SHIFT, cy1 = area.minY >> SHIFT;
+		int cx2 = area.maxX >> SHIFT, cy2 = area.maxY >> SHIFT;
+		if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > cells.size()) return null;
+		int[] ids = new int[64];
+		int n = 0;
+		for (int cx = cx1; cx <= cx2; cx++) {
+			for (int cy = cy1; cy <= cy2; cy++) {
+				Cell cell = cells.get(key(cx, cy));
+				if (cell == null) continue;
+				for (int i = 0; i < cell.count; i++) {
+					if (!indexed.get(cell.ids[i]).intersects(area)) continue;
+					if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+					ids[n++] = cell.ids[i];
+				}
+			}
+		}
+		for (int i = 0; i < big.count; i++) {
+			if (!indexed.get(big.ids[i]).intersects(area)) continue;
+			if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+			ids[n++] = big.ids[i];
+		}
+		// A shape over several of the cells was listed in each
+		Arrays.sort(ids, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || ids[i] != ids[distinct - 1]) ids[distinct++] = ids[i];
+		}
+		return Arrays.copyOf(ids, distinct);
+	}
+
+	/**
+	 * Returns whether the two boxes overlap the same cells (or are both on the big list, or both empty).
+	 */
+	private static boolean sameCells(Bounds a, Bounds b) {
+		if (a.isEmpty() || b.isEmpty()) return a.isEmpty() == b.isEmpty();
+		return a.minX >> SHIFT == b.minX >> SHIFT && a.minY >> SHIFT == b.minY >> SHIFT
+				&& a.maxX >> SHIFT == b.maxX >> SHIFT && a.maxY >> SHIFT == b.maxY >> SHIFT;
+	}
+
+	private static Long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map from IDs to shapes, sorted by ID (drawing order), for Sketch. Changing it returns a new map that
+ * shares all but the path to the changed entry with the old one (a persistent AVL tree), so keeping a version around
+ * -- for undo, a snapshot for a new client, or drawing while edits arrive -- costs nothing, and a version can be
+ * read by any thread without locking while others make newer ones.
+ *
+ * An ID can also be mapped to null, which Sketch uses to mark a shape in its snapshot file as removed.
+ */
+public class ShapeMap implements Iterable<Map.Entry<Integer, Shape>> {
+	public static final ShapeMap EMPTY = new ShapeMap(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	/**
+	 * One entry; never changed once made
+	 */
+	private static final class Node implements Map.Entry<Integer, Shape> {
+		final int key;
+		final Shape value;
+		final Node left, right;
+		final int height;
+
+		Node(int key, Shape value, Node left, Node right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			height = 1 + Math.max(height(left), height(right));
+		}
+
+		public Integer getKey() {
+			return key;
+		}
+
+		public Shape getValue() {
+			return value;
+		}
+
+		public Shape setValue(Shape value) {
+			throw new UnsupportedOperationException("ShapeMap is immutable");
+		}
+	}
+
+	private ShapeMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Returns how many IDs are mapped.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the shape with the given ID, or null if there's none.
+	 */
+	public Shape get(int key) {
+		Node n = find(key);
+		return n == null ? null : n.value;
+	}
+
+	/**
+	 * Returns whether the ID is mapped (possibly to null).
+	 */
+	public boolean containsKey(int key) {
+		return find(key) != null;
+	}
+
+	private Node find(int key) {
+		Node n = root;
+		while (n != null && n.key != key) n = key < n.key ? n.left : n.right;
+		return n;
+	}
+
+	/**
+	 * Returns a map with the ID mapped to the shape, replacing whatever it was mapped to.
+	 */
+	public ShapeMap put(int key, Shape value) {
+		return new ShapeMap(insert(root, key, value), containsKey(key) ? size : size + 1);
+	}
+
+	/**
+	 * Returns a map without the ID.
+	 */
+	public ShapeMap remove(int key) {
+		if (!containsKey(key)) return this;
+		return new ShapeMap(delete(root, key), size - 1);
+	}
+
+	/**
+	 * Returns the entries in ID order; the map can't change underneath.
+	 */
+	public Iterator<Map.Entry<Integer, Shape>> iterator() {
+		return new Walk(root, true);
+	}
+
+	/**
+	 * Returns the entries from the greatest ID to the least.
+	 */
+	public Iterable<Map.Entry<Integer, Shape>> descending() {
+		return () -> new Walk(root, false);
+	}
+
+	// The tree: a copy of each node on the path down to the change, rebalanced on the way back up
+
+	private static Node insert(Node n, int key, Shape value) {
+		if (n == null) return new Node(key, value, null, null);
+		if (key < n.key) return balance(n.key, n.value, insert(n.left, key, value), n.right);
+		if (key > n.key) return balance(n.key, n.value, n.left, insert(n.right, key, value));
+		return new Node(key, value, n.left, n.right);
+	}
+
+	private static Node delete(Node n, int key) {
+		if (key < n.key) return balance(n.key, n.value, delete(n.left, key), n.right);
+		if (key > n.key) return balance(n.key, n.value, n.left, delete(n.right, key));
+		if (n.left == null) return n.right;
+		if (n.right == null) return n.left;
+		Node next = n.right; // Replace with the next entry up
+		while (next.left != null) next = next.left;
+		return balance(next.key, next.value, n.left, delete(n.right, next.key));
+	}
+
+	/**
+	 * Makes a node, rotating if one side has grown two taller than the other.
+	 */
+	private static Node balance(int key, Shape value, Node left, Node right) {
+		int lean = height(left) - height(right);
+		if (lean > 1) {
+			if (height(left.left) < height(left.right)) { // Left-right: rotate the left child first
+				left = new Node(left.right.key, left.right.value,
+						new Node(left.key, left.value, left.left, left.right.left), left.right.right);
+			}
+			return new Node(left.key, left.value, left.left, new Node(key, value, left.right, right));
+		}
+		if (lean < -1) {
+			if (height(right.right) < height(right.left)) { // Right-left: rotate the right child first
+				right = new Node(right.left.key, right.left.value, right.left.left,
+						new Node(right.key, right.value, right.left.right, right.right));
+			}
+			return new Node(right.key, right.value, new Node(key, value, left, right.left), right.right);
+		}
+		return new Node(key, value, left, right);
+	}
+
+	private static int height(Node n) {
+		return n == null ? 0 : n.height;
+	}
+
+	/**
+	 * An in-order walk, either way, keeping the path still to visit on a stack
+	 */
+	private static class Walk implements Iterator<Map.Entry<Integer, Shape>> {
+		private ArrayDeque<Node> path = new ArrayDeque<Node>();
+		private boolean ascending;
+
+		Walk(Node root, boolean ascending) {
+			this.ascending = ascending;
+			descend(root);
+		}
+
+		private void descend(Node n) {
+			while (n != null) {
+				path.push(n);
+				n = ascending ? n.left : n.right;
+			}
+		}
+
+		public boolean hasNext() {
+			return !path.isEmpty();
+		}
+
+		public Map.Entry<Integer, Shape> next() {
+			if (path.isEmpty()) throw new NoSuchElementException();
+			Node n = path.pop();
+			descend(ascending ? n.right : n.left);
+			return n;
+		}
+	}
+}
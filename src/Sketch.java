@@ -1,22 +1,36 @@
 import java.awt.Color;
-import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * Holds the current list of shapes in a convenient data structure, along with some useful commands.
  * Used both server-side (for the Master sketch) and client-side (for the local sketch).
+ *
+ * The shapes are kept in an immutable map (see ShapeMap), and a shape is never changed once it's in the sketch: moving
+ * or recoloring one puts a changed copy in its place. So a copy of the sketch (clone()) is just a pointer to the
+ * current map, and walking the shapes (forEachShape(), getShapes()) sees one version throughout, without holding up
+ * edits made meanwhile.
+ *
+ * A sketch loaded from a snapshot file (see SnapshotFile) starts out reading its shapes from the file, building each
+ * one only when it's needed; the map holds just the shapes changed (or removed, mapped to null) since, and everything
+ * added, laid over the rest.
  * 
  * @author Jared Cole
  */
 public class Sketch {
-	private TreeMap<Integer, Shape> shapes; // Maps global ids to shapes; TreeMap for ordering functionality
+	private ShapeMap shapes; // Maps global ids to shapes, in ID order; replaced, never changed
 	private int curID; // The ID of the next shape to be added; can be thought of as the "maxiumum ID" + 1
 	private int leastID;
+	private SnapshotFile base; // The snapshot the other shapes are still in, if any
+	private int size; // How many shapes there are, counting those only in base
+	private ShapeGrid grid; // Where the shapes are, for hit-testing; built on the first one, then kept up to date
 	
 	/**
 	 * Constructs a new Sketch object with default values.
 	 */
 	public Sketch() {
-		shapes = new TreeMap<Integer, Shape>(); // Empty id to shape map
+		shapes = ShapeMap.EMPTY; // Empty id to shape map
 		curID = 0; // Current id set to 0
 		leastID = -2;
 	}
@@ -24,47 +38,184 @@ public class Sketch {
 	/**
 	 * Constructs a Sketch object based on a given map and current ID.
 	 */
-	public Sketch(TreeMap<Integer, Shape> shapes, int curID, int leastID) {
+	public Sketch(ShapeMap shapes, int curID, int leastID) {
 		this.shapes = shapes; // Set shapes to given shapes
 		this.curID = curID; // Set curID to given curID
 		this.leastID = leastID;
+		size = shapes.size();
 	}
 	
-	 // Almost all methods that can access the internal TreeMap or curID must be synchronized so that
+	/**
+	 * Constructs a Sketch object that reads its shapes from the given snapshot as they are needed.
+	 */
+	public Sketch(SnapshotFile base) {
+		this(ShapeMap.EMPTY, base.getCurID(), base.getLeastID());
+		this.base = base;
+		size = base.size();
+	}
+	
+	 // Almost all methods that can access the internal map or curID must be synchronized so that
 	 // they properly reflect the state of the Sketch at any given time without possibility of overwriting.
 		
 	/**
-	 * Getter for the internal ids to shapes TreeMap. Returns as a TreeMap instead of the superclass Map
-	 * so that useful functions like TreeMap.navigableKeySet() or TreeMap.descendingKeySet() can be called.
+	 * Getter for the internal ids to shapes map, as it stands now; later edits make new maps rather than changing
+	 * this one, so it can be walked (in ID order) at leisure. Any shapes still only in a snapshot are built first;
+	 * forEachShape() walks the shapes without keeping them.
 	 *
-	 * @return	the internal ids to shapes TreeMap
+	 * @return	the internal ids to shapes map
 	 */
-	public synchronized TreeMap<Integer, Shape> getShapes() {
+	public synchronized ShapeMap getShapes() {
+		if (base != null) { // Bring in everything still in the snapshot, and be done with it
+			ShapeMap all = ShapeMap.EMPTY;
+			for (int i = 0; i < base.size(); i++) {
+				if (!shapes.containsKey(base.id(i))) all = all.put(base.id(i), base.shape(i));
+			}
+			for (Map.Entry<Integer, Shape> entry : shapes) {
+				if (entry.getValue() != null) all = all.put(entry.getKey(), entry.getValue()); // (null: removed)
+			}
+			shapes = all;
+			base = null;
+		}
 		return shapes;
 	}
 	
 	/**
-	 * Adds the given shape to the internal TreeMap at the default ID.
+	 * Calls the action with each ID and its shape, in ID (drawing) order, as the sketch stands when called; edits
+	 * made meanwhile (even by the action) aren't seen, and don't have to wait. Shapes still in a snapshot are built
+	 * just for the call.
+	 */
+	public void forEachShape(BiConsumer<Integer, Shape> action) {
+		ShapeMap shapes;
+		SnapshotFile base;
+		synchronized (this) {
+			shapes = this.shapes;
+			base = this.base;
+		}
+		if (base == null) {
+			for (Map.Entry<Integer, Shape> entry : shapes) {
+				action.accept(entry.getKey(), entry.getValue());
+			}
+			return;
+		}
+		// Merge the two, both already in ID order; where both have an ID, the map's entry is the current one
+		Iterator<Map.Entry<Integer, Shape>> changed = shapes.iterator();
+		Map.Entry<Integer, Shape> next = changed.hasNext() ? changed.next() : null;
+		for (int i = 0; i < base.size(); i++) {
+			int id = base.id(i);
+			for (; next != null && next.getKey() <= id; next = changed.hasNext() ? changed.next() : null) {
+				if (next.getValue() != null) action.accept(next.getKey(), next.getValue());
+				if (next.getKey() == id) id = Integer.MIN_VALUE; // Superseded
+			}
+			if (id != Integer.MIN_VALUE) action.accept(id, base.shape(i));
+		}
+		for (; next != null; next = changed.hasNext() ? changed.next() : null) {
+			if (next.getValue() != null) action.accept(next.getKey(), next.getValue());
+		}
+	}
+	
+	/**
+	 * Calls the action with each ID and its shape whose bounds overlap the area, in ID (drawing) order, as
+	 * forEachShape() does. Only the shapes in the grid cells the area covers are looked at (see ShapeGrid), so this
+	 * takes about as long however many shapes there are elsewhere.
+	 */
+	public void forEachShapeIn(Bounds area, BiConsumer<Integer, Shape> action) {
+		int[] ids;
+		Shape[] found = null;
+		synchronized (this) {
+			if (grid == null) buildGrid();
+			ids = grid.overlapping(area);
+			if (ids != null) {
+				found = new Shape[ids.length];
+				for (int i = 0; i < ids.length; i++) {
+					found[i] = get(ids[i]);
+				}
+			}
+		}
+		if (ids == null) { // Most of the sketch, so it's quicker to go through the lot
+			forEachShape((id, shape) -> {
+				if (shape.getBounds().intersects(area)) action.accept(id, shape);
+			});
+			return;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			action.accept(ids[i], found[i]);
+		}
+	}
+	
+	/**
+	 * Returns the shape with the given ID, or null if there's none. The sketch won't change it, and neither may the
+	 * caller.
+	 */
+	public synchronized Shape getShape(int id) {
+		return get(id);
+	}
+	
+	/**
+	 * Returns how many shapes there are.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the shape with the given ID, building it from the snapshot if it's only there.
+	 */
+	private Shape get(int id) {
+		if (base == null || shapes.containsKey(id)) return shapes.get(id);
+		int i = base.indexOf(id);
+		return i < 0 ? null : base.shape(i);
+	}
+	
+	/**
+	 * Returns whether there is a shape with the given ID.
+	 */
+	private boolean has(int id) {
+		if (base == null || shapes.containsKey(id)) return shapes.get(id) != null;
+		return base.indexOf(id) >= 0;
+	}
+	
+	/**
+	 * Maps the ID to the shape, in a new version of the map.
+	 */
+	private void put(int id, Shape shape) {
+		if (!has(id)) size++;
+		shapes = shapes.put(id, shape);
+		if (grid != null) grid.put(id, shape.getBounds());
+	}
+	
+	/**
+	 * Unmaps the ID, in a new version of the map; a shape in the snapshot is marked removed instead.
+	 */
+	private void delete(int id) {
+		if (!has(id)) return;
+		size--;
+		shapes = base != null && base.indexOf(id) >= 0 ? shapes.put(id, null) : shapes.remove(id);
+		if (grid != null) grid.remove(id);
+	}
+	
+	/**
+	 * Adds the given shape to the internal map at the default ID. The shape is the sketch's from then on; it mustn't
+	 * be changed.
 	 * 
-	 * @param shape	the shape to be added to the TreeMap
+	 * @param shape	the shape to be added to the map
 	 * @return	true of the shape was successfully added, or false otherwise
 	 */
 	public synchronized boolean addShape(Shape shape) {
 		if (shape == null) return false; // If the shape was null, terminate and return false
-		shapes.put(curID++, shape); // Otherwise add the shape at curID, then increment it
+		put(curID++, shape); // Otherwise add the shape at curID, then increment it
 		return true; // Return true to signify success
 	}
 	
 	/**
-	 * Removes the shape with the given id from the internal TreeMap.
+	 * Removes the shape with the given id from the internal map.
 	 * 
 	 * @param id	the ID of the shape to be removed
 	 * @return	true if the shape was properly removed, or false otherwise
 	 */
 	public synchronized boolean removeShape(int id) {
 		if (id == -1 || id < leastID || id > curID) return false; // If the given ID is -1 or too big, return false
-		if (!shapes.containsKey(id)) return false; // If shapes doesn't have the given ID, return false
-		shapes.remove(id); // Otherwise remove it
+		if (!has(id)) return false; // If shapes doesn't have the given ID, return false
+		delete(id); // Otherwise remove it
 		return true; // Return true to signify success
 	}
 
@@ -78,8 +229,11 @@ public class Sketch {
 	 */
 	public synchronized boolean moveShape(int id, int dx, int dy) {
 		if (id == -1 || id < leastID || id > curID) return false; // If the given ID is invalid, return false
-		if (!shapes.containsKey(id)) return false; // If shapes doesn't have the given ID, return false
-		shapes.get(id).moveBy(dx, dy); // Otherwise get the shape and call its own moveBy by the given amount
+		Shape shape = get(id);
+		if (shape == null) return false; // If shapes doesn't have the given ID, return false
+		shape = shape.clone(); // Otherwise copy the shape (others may still be looking at it),
+		shape.moveBy(dx, dy); // call its own moveBy by the given amount,
+		put(id, shape); // and put the copy in its place
 		return true; // Return true to signify success
 	}
 	
@@ -92,8 +246,11 @@ public class Sketch {
 	 */
 	public synchronized boolean recolorShape(int id, Color color) {
 		if (id == -1 || id < leastID || id > curID || color == null) return false; // If invalid parameters, return false
-		if (!shapes.containsKey(id)) return false; // If shapes doesn't have the given ID, return false
-		shapes.get(id).setColor(color); // Otherwise set the color as specified
+		Shape shape = get(id);
+		if (shape == null) return false; // If shapes doesn't have the given ID, return false
+		shape = shape.clone(); // Otherwise recolor a copy, as in moveShape
+		shape.setColor(color);
+		put(id, shape);
 		return true; // Return true to signify success
 	}
 	
@@ -106,13 +263,16 @@ public class Sketch {
 	 */
 	public synchronized boolean recolorShape(int id, int color) {
 		if (id == -1 || id < leastID || id > curID) return false; // If the given ID is invalid, return false
-		if (!shapes.containsKey(id)) return false; // If shapes doesn't have the given ID, return false
-		shapes.get(id).setColor(new Color(color)); // Otherwise set the color as specified
+		Shape shape = get(id);
+		if (shape == null) return false; // If shapes doesn't have the given ID, return false
+		shape = shape.clone(); // Otherwise recolor a copy, as in moveShape
+		shape.setColor(Colors.of(color));
+		put(id, shape);
 		return true; // Return true to signify success
 	}
 	
 	/**
-	 * Updates the given entry in the TreeMap of id to shape, or creates the entry if it doesn't exist.
+	 * Updates the given entry in the map of id to shape, or creates the entry if it doesn't exist.
 	 * Can be thought of as an addShape that adds at a specific ID instead of one determined by the Sketch.
 	 * 
 	 * @param id	the ID to map the given shape to
@@ -121,41 +281,54 @@ public class Sketch {
 	 */
 	public synchronized boolean updateShape(int id, Shape shape) {
 		if (id == -1 || shape == null) return false; // If the ID or shape are invalid, return false
-		shapes.put(id, shape); // Put a new entry into the map for the given id and shape
+		put(id, shape); // Put a new entry into the map for the given id and shape
 		if (id >= curID) curID = id + 1; // If given ID is larger than curID (max ID), update curID to match
+		if (id <= leastID) leastID = id - 1; // Likewise if it's below leastID (sent to bottom), so IDs aren't reused
 		return true; // Return true to signify success
 	}
 	
 	public synchronized boolean sendToBottom(int id) {
-		if (id > curID || id < leastID || id == -1) return false; // If ID is invalid, return false
-		shapes.put(leastID--, shapes.get(id)); // Put the shape to the current least ID, then decrement leastID
+		if (id > curID || id < leastID || id == -1 || !has(id)) return false; // If ID is invalid, return false
+		put(leastID--, get(id)); // Put the shape to the current least ID, then decrement leastID
 		removeShape(id); // Then remove the old entry for the shape
 		return true; // Return true to signify success
 	}
 	
 	public synchronized boolean sendToTop(int id) {
-		if (id > curID || id < leastID || id == -1) return false; // If ID is invalid, return false
-		addShape(shapes.get(id)); // Add this shape again at the top
+		if (id > curID || id < leastID || id == -1 || !has(id)) return false; // If ID is invalid, return false
+		addShape(get(id)); // Add this shape again at the top
 		removeShape(id); // Then remove the old entry for the shape
 		return true; // Return true to signify success
 	}
 	
 	/**
-	 * Finds the most recent Shape that contains the given point, and returns its ID.
+	 * Finds the most recent Shape that contains the given point, and returns its ID. Only the shapes whose bounds
+	 * share the point's grid cell are tested (see ShapeGrid), so this takes about as long however many shapes there
+	 * are elsewhere.
 	 * 
 	 * @param x	x-coordinate of the point
 	 * @param y	y-coordinate of the point
 	 * @return	ID of the uppermost colliding shape
 	 */
 	public synchronized int getUppermostCollision(int x, int y) {
-		// Iterate over all IDs, from greatest to least
-		for (Integer id : shapes.descendingKeySet()) {
-			// If the shape corresponding to this ID contains the point,
-			if (shapes.get(id).contains(x, y)) {
-				return id; // return it (so the first such shape has its ID returned)
+		if (grid == null) buildGrid(); // The first hit-test; most sketches (the server's, copies) never need one
+		// The candidates come from greatest ID to least, so the first that really contains the point is uppermost
+		return grid.uppermost(x, y, id -> get(id).contains(x, y));
+	}
+	
+	/**
+	 * Indexes every shape, reading the bounds of those still in a snapshot from the file rather than building them.
+	 */
+	private void buildGrid() {
+		grid = new ShapeGrid();
+		if (base != null) {
+			for (int i = 0; i < base.size(); i++) {
+				if (!shapes.containsKey(base.id(i))) grid.put(base.id(i), base.bounds(i));
 			}
 		}
-		return -1; // If no shape has contains this point, return -1
+		for (Map.Entry<Integer, Shape> entry : shapes) {
+			if (entry.getValue() != null) grid.put(entry.getKey(), entry.getValue().getBounds()); // (null: removed)
+		}
 	}
 	
 	/**
@@ -167,6 +340,13 @@ public class Sketch {
 		return curID;
 	}
 	
+	/**
+	 * Getter for the ID the next shape sent to the bottom will get.
+	 */
+	public synchronized int getLeastID() {
+		return leastID;
+	}
+	
 	/**
 	 * Setter for the current ID of this sketch.
 	 * 
@@ -177,13 +357,14 @@ public class Sketch {
 	}
 	
 	/**
-	 * Create a clone of this Sketch object.
+	 * Create a clone of this Sketch object. Neither the map nor the shapes in it ever change, so the clone shares
+	 * them (and the snapshot, if any), and this takes no longer for a bigger sketch. The grid isn't shared; a clone
+	 * builds its own if it's ever hit-tested.
 	 */
 	public synchronized Sketch clone() {
-		TreeMap<Integer, Shape> newMap = new TreeMap<Integer, Shape>();
-		for (int id : shapes.keySet()) {
-			newMap.put(id, shapes.get(id) == null ? null : shapes.get(id).clone());
-		}
-		return new Sketch(newMap, curID, leastID);
+		Sketch copy = new Sketch(shapes, curID, leastID);
+		copy.base = base;
+		copy.size = size;
+		return copy;
 	}
 }
@@ -1,8 +1,16 @@
+import java.awt.Color;
 import java.net.*;
 import java.util.*;
-import java.awt.Color;
-import java.awt.Point;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A server to handle sketches: getting requests from the clients,
@@ -13,206 +21,731 @@ import java.io.*;
  */
 public class SketchServer {
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch[] sketchStates;						// all of the saved states of the world
-	private int currState;
-	private static final int MAX_SAVED_STATES = 15;
+	private List<ClientCommunicator> comms;				// all the connections with clients
+	private Sketch sketch;								// the master sketch
+	private UndoHistory history = new UndoHistory(UNDO_DEPTH);	// how to undo (and redo) what's been done to it
 	private String password;
+	// Guards comms and password, and keeps broadcasts in one order for every client. A ReentrantLock rather than
+	// synchronized, since broadcast() can wait on a full queue (BLOCK policy) and a virtual thread blocked inside a
+	// monitor would pin its carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+	// Commands from clients, in the order they're to be applied; its thread is the only one that changes the sketch
+	private Sequencer sequencer = new Sequencer(RING_SIZE, this::handleBatch);
+	
+	// Commands applied to the master sketch this tick but not yet broadcast (only used when TICK > 0), and where in
+	// pending each shape's move and recolor are, so later ones can be merged into them
+	private List<Command> pending = new ArrayList<Command>();
+	private Map<Integer, Integer> pendingMoves = new HashMap<Integer, Integer>();
+	private Map<Integer, Integer> pendingRecolors = new HashMap<Integer, Integer>();
+	// Commands applied in this batch from the sequencer, to be broadcast together at its end (when TICK is 0)
+	private List<Command> outgoing = new ArrayList<Command>();
+	// The stroke each client is streaming, if any (see handleStroke()), and the key the last one was given
+	private Map<ClientCommunicator, LiveStroke> strokes = new ConcurrentHashMap<ClientCommunicator, LiveStroke>();
+	private AtomicInteger strokeKeys = new AtomicInteger();
+	// Ends of streamed strokes whose shapes are in this batch (or tick), to go out right after it
+	private List<Command> strokeEnds = new ArrayList<Command>();
+	// The most recent broadcast edits, so reconnecting clients can catch up (see OpLog), and a random number naming
+	// this run of the server, so a client's sequence number from some earlier run isn't mistaken for one of ours
+	private OpLog opLog = new OpLog(OP_LOG_SIZE);
+	private long epoch = new Random().nextLong() & Long.MAX_VALUE;
+	// Where the master sketch is kept on disk (null if it's only kept in memory), and the sequence number of the
+	// latest snapshot written there
+	private Journal journal;
+	private long snapshotSeq;
+	private int reportedResyncs;	// the clients' resyncs, all told, as of the last status line (see reportStatus())
+	
+	// Server options, given as system properties (e.g. java -Dsketch.io=nio SketchServer)
+	private static final String IO_MODE = System.getProperty("sketch.io", "threads");	// "threads", "virtual", or "nio"
+	private static final int IO_THREADS = Integer.getInteger("sketch.ioThreads",		// selector threads for nio
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+	public static final int QUEUE_SIZE = sizeOption("sketch.queueSize", 4096);	// messages queued per client
+	public static final OutboundQueue.Policy SLOW_CONSUMER =							// when a client's queue is full
+			OutboundQueue.Policy.valueOf(System.getProperty("sketch.slowConsumer", "resync").toUpperCase());
+	private static final int TICK = Integer.getInteger("sketch.tick", 0);	// ms between broadcasts; 0 sends each at once
+	private static final int OP_LOG_SIZE = sizeOption("sketch.opLog", 10000);	// edits kept for catching up
+	private static final int UNDO_DEPTH = Integer.getInteger("sketch.undoDepth", 1000);	// actions that can be undone
+	private static final String DATA_DIR = System.getProperty("sketch.dataDir");		// where to save the sketch, if anywhere
+	private static final Journal.Durability DURABILITY =								// when saved edits reach the disk
+			Journal.Durability.valueOf(System.getProperty("sketch.durability", "group").toUpperCase());
+	private static final int SNAPSHOT_INTERVAL = Integer.getInteger("sketch.snapshotInterval", 60);	// s between snapshots
+	private static final int RING_SIZE = Integer.getInteger("sketch.ringSize", 4096);	// commands waiting to be applied
+	private static final int MAX_STROKE_POINTS = Integer.getInteger("sketch.maxStrokePoints", 65536);	// per stroke
+	private static final int STATUS_INTERVAL = Integer.getInteger("sketch.statusInterval", 10);	// s between status lines
 	
-	public SketchServer(ServerSocket listen) {
+	// Thread.ofVirtual().start(), looked up reflectively so the server still builds and runs on Java 8
+	private static final Object VIRTUAL_BUILDER;
+	private static final Method VIRTUAL_START;
+	static {
+		Object builder = null;
+		Method start = null;
+		try {
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+		}
+		catch (ReflectiveOperationException e) {
+			// No virtual threads on this JVM (before Java 21); virtual mode falls back to platform threads
+		}
+		VIRTUAL_BUILDER = builder;
+		VIRTUAL_START = start;
+	}
+	
+	/**
+	 * A stroke a client is streaming: the key it goes by to the other clients, and its points so far
+	 */
+	private static class LiveStroke {
+		final int key;
+		final Polyline points;
+
+		LiveStroke(int key, Color color) {
+			this.key = key;
+			points = new Polyline(new int[64], new int[64], 0, color);
+		}
+	}
+	
+	public SketchServer(ServerSocket listen) throws IOException {
 		this.listen = listen;
-		currState = 0;
-		sketchStates = new Sketch[MAX_SAVED_STATES];
-		sketchStates[0] = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		sketch = new Sketch();
+		comms = new CopyOnWriteArrayList<ClientCommunicator>(); // Broadcasts iterate without copying
+		if (DATA_DIR != null) openJournal(new File(DATA_DIR));
+		sequencer.start(); // Only now that the sketch is loaded
+		if (TICK > 0) { // Broadcast each tick's commands together
+			ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "sketch-tick");
+				t.setDaemon(true);
+				return t;
+			});
+			ticker.scheduleAtFixedRate(this::flushPending, TICK, TICK, TimeUnit.MILLISECONDS);
+		}
+		if (STATUS_INTERVAL > 0) { // Say when clients are falling behind
+			ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "sketch-status");
+				t.setDaemon(true);
+				return t;
+			});
+			reporter.scheduleWithFixedDelay(this::reportStatus, STATUS_INTERVAL, STATUS_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Picks up the sketch saved in the given directory, if any, and starts saving to it: loads the latest snapshot,
+	 * replays the journal after it, and carries on numbering (and with the same epoch, so editors can resume across
+	 * the restart) from there.
+	 */
+	private void openJournal(File dir) throws IOException {
+		journal = new Journal(dir, DURABILITY);
+		Journal.Recovery recovery = journal.recover();
+		if (recovery.snapshot != null) {
+			sketch = new Sketch(recovery.snapshot); // Shapes are read from the mapped file as they're needed
+			snapshotSeq = recovery.snapshotSeq;
+		}
+		opLog.restart(snapshotSeq);
+		int replayed = 0;
+		for (Journal.Record record : recovery.tail) {
+			if (record.seq != opLog.getLast() + 1) break; // A gap (a journal file lost); nothing after it fits
+			if (record.type == Journal.RESET) { // Written by servers that reset editors after an undo
+				sketch = load(record.payload);
+				opLog.reset();
+			} else {
+				Command cmd = BinaryProtocol.decodeAll(record.payload).get(0);
+				cmd.applyTo(sketch);
+				opLog.append(cmd);
+			}
+			replayed++;
+		}
+		if (recovery.epoch != 0) epoch = recovery.epoch;
+		if (recovery.snapshot != null || replayed > 0) {
+			System.out.println("loaded sketch from " + dir + " (snapshot at seq " + snapshotSeq + ", " + replayed
+					+ " edits replayed; " + sketch.size() + " shapes)");
+		}
+		journal.start(epoch, opLog.getLast() + 1);
+
+		// Snapshot every so often, so the journal doesn't grow without bound and startup doesn't replay all of it
+		ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sketch-snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshotter.scheduleWithFixedDelay(this::takeSnapshot, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+		// Get whatever the writer still has queued onto disk on the way out
+		Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "sketch-journal-close"));
+	}
+
+	/**
+	 * Builds a sketch from a reset's snapshot (see encodeSnapshot()) in binary frames.
+	 */
+	private static Sketch load(byte[] frames) {
+		Sketch sketch = new Sketch();
+		for (Command cmd : BinaryProtocol.decodeAll(frames)) {
+			cmd.applyTo(sketch); // The leading clear is a no-op on a new sketch
+		}
+		return sketch;
+	}
+
+	/**
+	 * Writes the master sketch out as a snapshot, if it has changed since the last one; run every SNAPSHOT_INTERVAL
+	 * seconds. Only a copy of the sketch is taken under the lock (a pointer copy); it's encoded and written out after,
+	 * so clients aren't held up.
+	 */
+	private void takeSnapshot() {
+		long seq, rolled;
+		Sketch copy;
+		lock.lock();
+		try {
+			flushPending(); // So the snapshot and the journal agree on what's been numbered
+			seq = opLog.getLast();
+			if (seq == snapshotSeq) return; // Nothing new
+			copy = getSketch().clone();
+			rolled = journal.roll(seq + 1); // Later edits go to a new file, leaving the old ones to be dropped
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			journal.writeSnapshot(seq, SnapshotFile.encode(epoch, seq, copy), rolled);
+			snapshotSeq = seq;
+			System.out.println("snapshot saved at seq " + seq);
+		}
+		catch (IOException e) {
+			System.err.println("couldn't save snapshot");
+			e.printStackTrace();
+		}
 	}
 
 	public Sketch getSketch() {
-		return sketchStates[currState];
+		return sketch;
 	}
 	
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
 	public void getConnections() throws IOException {
-		System.out.println("server ready for connections");
+		System.out.println("server ready for connections" + (IO_MODE.equals("virtual") ? " (virtual threads)" : ""));
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
+			addCommunicator(comm); // Added before it starts, so its password check sees itself counted
+			startThread(comm);
+		}
+	}
+	
+	/**
+	 * Starts a thread running the given task: a virtual thread in virtual mode, when the JVM supports them,
+	 * and otherwise a daemon platform thread as before.
+	 */
+	public static Thread startThread(Runnable task) {
+		if (IO_MODE.equals("virtual") && VIRTUAL_START != null) {
+			try {
+				return (Thread) VIRTUAL_START.invoke(VIRTUAL_BUILDER, task);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("couldn't start virtual thread", e);
+			}
 		}
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
 	}
 
 	/**
 	 * Returns the number of connections this server has.
 	 */
-	public synchronized int numConnections() {
-		return comms.size();
+	public int numConnections() {
+		lock.lock();
+		try {
+			return comms.size();
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Sets the server's password to the given input.
 	 */
-	public synchronized void setPassword(String password) {
-		this.password = password;
+	public void setPassword(String password) {
+		lock.lock();
+		try {
+			this.password = password;
+		}
+		finally {
+			lock.unlock();
+		}
 		System.out.println("password set to " + password);
 	}
 	
-	public synchronized boolean hasPassword() {
-		if (password == null) return false;
-		return true;
+	public boolean hasPassword() {
+		lock.lock();
+		try {
+			return password != null;
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Checks if the given input matches the server's password.
 	 */
-	public synchronized boolean checkPassword(String input) {
-		return input.equals(password);
+	public boolean checkPassword(String input) {
+		lock.lock();
+		try {
+			return input.equals(password);
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Adds the communicator to the list of current communicators
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public void addCommunicator(ClientCommunicator comm) {
+		lock.lock();
+		try {
+			comms.add(comm);
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Removes the communicator from the list of current communicators
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public void removeCommunicator(ClientCommunicator comm) {
+		lock.lock();
+		try {
+			comms.remove(comm);
+			LiveStroke stroke = strokes.remove(comm);
+			if (stroke != null) broadcastStroke(Command.strokeEnd(stroke.key, 0), comm); // Gone mid-stroke
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Lets a client in once it has passed the password check (see ClientCommunicator.admit()).
+	 * Anything still pending from this tick goes out first, since the client's snapshot will already include it.
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
+	public void admit(ClientCommunicator comm) {
+		lock.lock();
+		try {
+			flushPending();
+			comm.admit();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the message from the one communicator to all (including the originator).
+	 * Only queues it for each client's writer, so a slow client doesn't hold up the rest.
+	 */
+	public void broadcast(Message msg) {
+		lock.lock();
+		try {
+			for (ClientCommunicator comm : comms) {
+				comm.send(msg); // The message caches its encodings, so each protocol's is built only once
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends part of a stroke to every client that can show it (see ClientCommunicator.streamsStrokes()) but the one
+	 * drawing it, which already shows it as its own.
+	 * Anything still pending from this tick goes out first, as in admit(): a client this message resyncs gets a
+	 * snapshot that already includes it, and mustn't be sent it again after.
+	 */
+	private void broadcastStroke(Message msg, ClientCommunicator except) {
+		lock.lock();
+		try {
+			if (!pending.isEmpty()) flushPending(); // (Never from flushPending() itself, which has emptied it by then)
+			for (ClientCommunicator comm : comms) {
+				if (comm != except && comm.streamsStrokes()) comm.send(msg);
+			}
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 	
 	/**
-	 * Parses input received from a client and uses it to appropriately update the server's master sketch.
-	 * Essentially identical to the every client's parseLine() to update their local sketches.
+	 * Encodes what a client needs to reset its sketch to the master sketch: a clear, an ID-based add for every shape,
+	 * and the master sketch's curID. Returned as a single message so it is queued (or dropped) as a whole.
+	 *
+	 * @param binary	whether the client speaks the binary protocol rather than text
+	 * @param sequenced	whether the client tracks sequence numbers, and so should be told the one the snapshot is at
+	 */
+	public byte[] encodeSnapshot(boolean binary, boolean sequenced) {
+		lock.lock(); // So the snapshot and its sequence number agree
+		try {
+			Sketch sketch = getSketch().clone(); // This version of it; a pointer copy, so cheap
+			ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+			write(Command.of(Command.CLEAR), snapshot, binary);
+			// Instruct the client to perform an ID-based add of each id and its corresponding shape
+			sketch.forEachShape((id, shape) -> write(Command.addAt(id, shape), snapshot, binary));
+			// Instruct the client to update its own curID to the master sketch's curID
+			write(Command.withId(Command.CUR_ID, sketch.getCurID()), snapshot, binary);
+			if (sequenced) write(Command.seq(opLog.getLast(), epoch), snapshot, binary);
+			return snapshot.toByteArray();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes what a newly admitted client needs to catch up with the master sketch: if it is resuming from a sequence
+	 * number whose edits are all still in the log, just those edits (and where that leaves it), otherwise a snapshot.
+	 *
+	 * @param handshake	what the client asked for before its password
+	 * @param binary	whether the client speaks the binary protocol rather than text
+	 */
+	public byte[] encodeCatchUp(Handshake handshake, boolean binary) {
+		lock.lock();
+		try {
+			List<Command> missed = null;
+			if (handshake.getResumeSeq() >= 0 && handshake.getResumeEpoch() == epoch) {
+				missed = opLog.since(handshake.getResumeSeq());
+			}
+			if (missed == null) return encodeSnapshot(binary, handshake.isSequenced()); // Too far behind, or new
+			System.out.println("resuming client from seq " + handshake.getResumeSeq() + " (" + missed.size() + " edits)");
+			ByteArrayOutputStream catchUp = new ByteArrayOutputStream();
+			for (Command cmd : missed) {
+				write(cmd, catchUp, binary);
+			}
+			write(Command.seq(opLog.getLast(), epoch), catchUp, binary);
+			return catchUp.toByteArray();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a command to a message in the given protocol's encoding.
+	 */
+	private static void write(Command cmd, ByteArrayOutputStream out, boolean binary) {
+		if (binary) BinaryProtocol.write(cmd, out);
+		else TextCodec.write(cmd, out);
+	}
+	
+	/**
+	 * Handles a "proto" line from a client's handshake, in which the client offers the newest protocol version it
+	 * speaks. Returns the version the two will use: 0 for text, or BinaryProtocol.VERSION.
+	 */
+	public static int negotiate(String offer) {
+		try {
+			return Math.max(0, Math.min(BinaryProtocol.VERSION, Integer.parseInt(offer.substring(6).trim())));
+		}
+		catch (NumberFormatException e) {
+			return 0; // Garbled offer; stick with text
+		}
+	}
+	
+	/**
+	 * Prints a status line with how many messages are waiting to be written to each client that has any, and how
+	 * many times clients have been resynced; run every STATUS_INTERVAL seconds. Nothing is printed while every queue
+	 * is empty and no client has been resynced since the last line, so an idle server stays quiet.
+	 */
+	private void reportStatus() {
+		StringBuilder queued = new StringBuilder();
+		int resyncs = 0;
+		for (ClientCommunicator comm : comms) { // A copy-on-write list, so no lock needed to walk it
+			int depth = comm.queueDepth();
+			if (depth > 0) queued.append(queued.length() == 0 ? "" : ", ").append(comm).append(": ").append(depth);
+			resyncs += comm.resyncs();
+		}
+		int fresh = resyncs - reportedResyncs; // (Fewer, if a client that was resynced has gone)
+		reportedResyncs = resyncs;
+		if (queued.length() == 0 && fresh <= 0) return;
+		System.out.println("status: " + comms.size() + " clients; queued " + (queued.length() == 0 ? "nothing" : queued)
+				+ "; " + Math.max(0, fresh) + " resyncs since the last status");
+	}
+	
+	/**
+	 * Parses a text line received from a client and handles it (see handle())
 	 * 
 	 * @param input	the input string as received by the server
-	 * @return	boolean indicating whether the received command was valid
-	 */
-	public boolean parseLine(String input) {
-		String[] words = input.split(" "); // Split the input string into tokens based on the space character
-		switch (words[0]) { // switch-case conditional based on the first token in the input string
-		case "add": // If it's add
-			String newShape = words[1]; // Find the shape type in the second token
-			switch (newShape) { // and use a second switch-case conditional based on the shape type
-			
-				// Once again, the rectangle, ellipse, and segment behave generally similarly
-				// Because their toString() representations contain a fixed number of tokens (constant
-				// amount of information required to properly reconstruct the shape)
-				case "rect": // If the shape is a rectangle
-					// Construct a Rectangle based on the remaining tokens (which in the toString() representation
-					// of a rectangle contain its essential information, in the order required)
-					sketchStates[currState].addShape(new Rectangle(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Break to prevent falling through (only breaks out of shape type switch case)
-				case "ellipse": // If the shape is an ellipse
-					// Construct an Ellipse based on the remaining tokens, as above
-					sketchStates[currState].addShape(new Ellipse(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Prevent falling through
-				case "segment": // If the shape is a segment
-					// Construct a Segment based on the remaining tokens, as above
-					sketchStates[currState].addShape(new Segment(Integer.parseInt(words[2]),Integer.parseInt(words[3]),
-							Integer.parseInt(words[4]),Integer.parseInt(words[5]),
-							new Color(Integer.parseInt(words[6]))));
-					break; // Prevent falling through
-				
-				// While Polylines behave differently because they require a variable-length amount of information
-				case "polyline":
-					List<Point> locs = new ArrayList<Point>(); // Start a temporary list of point locations
-					// Now remove the [] in the second token from the toString() representation of the Polyline
-					// and split the rest of the token into points in the form x,y
-					String[] points = words[2].substring(1, words[2].length()-1).split(";");
-					
-					// For each String-represented point in points
-					for (String s : points) {
-						String[] point = s.split(","); // Split the point String across the comman
-						// and construct a Point based on the information inside the String, add it to locs
-						locs.add(new Point(Integer.parseInt(point[0]),Integer.parseInt(point[1])));
-					}
-					
-					// Once the point list is done being populated, construct the Polyline and add it to sketch
-					sketchStates[currState].addShape(new Polyline(locs, new Color(Integer.parseInt(words[3]))));
-					break; // Prevent falling through
+	 */
+	public void handleLine(String input) {
+		Command cmd = TextCodec.decode(input);
+		if (cmd == null) {
+			System.out.println("Invalid command " + input.split(" ")[0] + " received."); // Notify user that something's wrong
+			return;
+		}
+		handle(cmd);
+	}
+	
+	/**
+	 * Handles a command received from a client: queues it behind every command already received, from any client, to
+	 * be applied to the master sketch and broadcast (see handleBatch()). Returns without waiting for that.
+	 */
+	public void handle(Command cmd) {
+		sequencer.publish(cmd);
+	}
+
+	/**
+	 * Returns whether n more commands can be handled now without handle() waiting for the ones queued ahead of them
+	 * (as far as can be told, since other clients' commands may take the room first).
+	 */
+	public boolean canHandle(int n) {
+		return sequencer.hasRoom(n);
+	}
+
+	/**
+	 * Runs the task once there's plenty of room for commands again (see Sequencer.whenRoom()); it should be quick.
+	 */
+	public void whenCanHandle(Runnable task) {
+		sequencer.whenRoom(task);
+	}
+
+	/**
+	 * Handles a piece of a freehand stroke that a client is streaming while it's drawn (protocol version 2): the start,
+	 * the points so far (a chunk every so often), or the end. Each piece is passed straight on to the clients that can
+	 * show it, under a key of the server's own, and the points are gathered here, so that at the end the stroke can be
+	 * simplified as the client asked and added to the sketch like any other shape, without ever coming in whole.
+	 * A stroke that reaches MAX_STROKE_POINTS is added as it stands and carried on as a new one (see splitStroke()),
+	 * so however long a client keeps drawing, the server holds no more than that many of its points.
+	 * Called on the client's I/O thread, one piece at a time per client.
+	 */
+	public void handleStroke(ClientCommunicator from, Command cmd) {
+		LiveStroke stroke = strokes.get(from);
+		switch (cmd.getOp()) {
+		case Command.STROKE:
+			if (stroke != null) broadcastStroke(Command.strokeEnd(stroke.key, 0), from); // Never ended; drop it
+			stroke = new LiveStroke(strokeKeys.incrementAndGet(), Colors.of(cmd.getRGB()));
+			strokes.put(from, stroke);
+			broadcastStroke(Command.stroke(stroke.key, cmd.getRGB()), from);
+			break;
+		case Command.STROKE_POINTS:
+			if (stroke == null) return; // Not started (or dropped)
+			Polyline points = (Polyline) cmd.getShape();
+			for (int i = 0, n; i < points.size(); i += n) { // Usually all in one go; in runs if the stroke is split
+				if (stroke.points.size() >= MAX_STROKE_POINTS) stroke = splitStroke(from, stroke);
+				n = Math.min(points.size() - i, MAX_STROKE_POINTS - stroke.points.size());
+				for (int j = i; j < i + n; j++) {
+					stroke.points.addPoint(points.getX(j), points.getY(j));
+				}
+				broadcastStroke(Command.strokePoints(stroke.key, n == points.size() ? points : run(points, i, n)), from);
+			}
+			break;
+		case Command.STROKE_END:
+			strokes.remove(from);
+			if (stroke == null) return;
+			Polyline shape = stroke.points;
+			if (cmd.getTolerance() > 0) shape = shape.simplified(cmd.getTolerance() / 100.0);
+			if (shape.size() > 0) handle(Command.add(shape));
+			// Behind the add, so the other clients swap the stroke for the shape in one go (see handleBatch())
+			handle(Command.strokeEnd(stroke.key, 0));
+			break;
+		}
+	}
+
+	/**
+	 * Adds the points a stroke has gathered to the sketch, unsimplified (its end, with the tolerance, is yet to come),
+	 * and returns a new stroke to carry on from its last point, which the other clients are shown joined on.
+	 */
+	private LiveStroke splitStroke(ClientCommunicator from, LiveStroke stroke) {
+		handle(Command.add(stroke.points));
+		handle(Command.strokeEnd(stroke.key, 0)); // Behind the add, as at the end
+		int last = stroke.points.size() - 1;
+		LiveStroke rest = new LiveStroke(strokeKeys.incrementAndGet(), stroke.points.getColor());
+		rest.points.addPoint(stroke.points.getX(last), stroke.points.getY(last));
+		strokes.put(from, rest);
+		broadcastStroke(Command.stroke(rest.key, rest.points.getColor().getRGB()), from);
+		broadcastStroke(Command.strokePoints(rest.key, run(stroke.points, last, 1)), from);
+		return rest;
+	}
+
+	/**
+	 * Returns n of the points, from the given one on, as points to stream.
+	 */
+	private static Polyline run(Polyline points, int from, int n) {
+		int[] xs = new int[n], ys = new int[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = points.getX(from + i);
+			ys[i] = points.getY(from + i);
+		}
+		return new Polyline(xs, ys, n, null);
+	}
+
+	/**
+	 * Applies a batch of commands from the sequencer to the master sketch, in order, and broadcasts the ones clients
+	 * should apply too, as one message. Only ever run on the sequencer's thread, so nothing else changes the sketch;
+	 * the lock is still taken (once for the batch) for what reads the sketch and its numbering together, like admit().
+	 */
+	private void handleBatch(List<Command> cmds) {
+		lock.lock();
+		try {
+			for (Command cmd : cmds) {
+				if (cmd.getOp() == Command.STROKE_END) { // Not an edit; goes out after the stroke's shape
+					strokeEnds.add(cmd);
+					continue;
+				}
+				if (!apply(cmd)) continue;
+				if (TICK > 0) addPending(cmd);
+				else outgoing.add(cmd);
+			}
+			if (TICK > 0) return; // The tick sends it all
+			if (!outgoing.isEmpty()) {
+				for (Command cmd : outgoing) {
+					record(cmd);
+				}
+				broadcast(outgoing.size() == 1 ? outgoing.get(0) : new CommandBatch(outgoing));
+				outgoing = new ArrayList<Command>(); // The batch keeps the old list
+			}
+			flushStrokeEnds();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Holds a command for the next tick's broadcast, merging it into an earlier one where possible: moves of the same
+	 * shape add up, and only the last recolor of a shape matters. Moves and recolors don't affect other shapes, so
+	 * they can be merged past each other; anything else may change which shape an ID names (top, bottom) or whether
+	 * it exists at all (add, remove), so nothing is merged across it.
+	 */
+	private void addPending(Command cmd) {
+		Integer at;
+		switch (cmd.getOp()) {
+		case Command.MOVE:
+			at = pendingMoves.get(cmd.getId());
+			if (at != null) { // Fold into this shape's earlier move
+				Command earlier = pending.get(at);
+				pending.set(at, Command.move(cmd.getId(), earlier.getDx() + cmd.getDx(), earlier.getDy() + cmd.getDy()));
+				return;
+			}
+			pendingMoves.put(cmd.getId(), pending.size());
+			break;
+		case Command.RECOLOR:
+			at = pendingRecolors.get(cmd.getId());
+			if (at != null) { // Supersedes this shape's earlier recolor
+				pending.set(at, cmd);
+				return;
 			}
+			pendingRecolors.put(cmd.getId(), pending.size());
+			break;
+		default:
+			pendingMoves.clear();
+			pendingRecolors.clear();
+		}
+		pending.add(cmd);
+	}
+
+	/**
+	 * Broadcasts the commands pending from this tick as one batch; run every TICK milliseconds.
+	 */
+	private void flushPending() {
+		lock.lock();
+		try {
+			if (!pending.isEmpty()) {
+				for (Command cmd : pending) {
+					record(cmd); // Numbered (and saved) as broadcast, after merging
+				}
+				CommandBatch batch = new CommandBatch(pending);
+				pending = new ArrayList<Command>();
+				clearPending();
+				broadcast(batch);
+			}
+			flushStrokeEnds();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the ends of the strokes whose shapes have just been broadcast.
+	 */
+	private void flushStrokeEnds() {
+		if (strokeEnds.isEmpty()) return;
+		broadcastStroke(strokeEnds.size() == 1 ? strokeEnds.get(0) : new CommandBatch(strokeEnds), null);
+		strokeEnds = new ArrayList<Command>();
+	}
+
+	/**
+	 * Broadcasts edits the server has already applied on its own account (an undo or redo) just like edits from
+	 * clients: numbered, saved, and sent to every client along with the rest of the batch.
+	 */
+	private void publish(List<Command> cmds) {
+		if (TICK > 0) {
+			for (Command cmd : cmds) addPending(cmd);
+		} else {
+			outgoing.addAll(cmds);
+		}
+	}
+
+	/**
+	 * Numbers an edit that is about to be broadcast, and saves it if the sketch is being kept on disk (with SYNC
+	 * durability, waiting until it's there, so no client sees an edit a crash could lose).
+	 */
+	private void record(Command cmd) {
+		long seq = opLog.append(cmd);
+		if (journal != null) journal.append(seq, cmd);
+	}
+
+	/**
+	 * Forgets the pending commands (without broadcasting them).
+	 */
+	private void clearPending() {
+		pending.clear();
+		pendingMoves.clear();
+		pendingRecolors.clear();
+	}
+	
+	/**
+	 * Uses a command received from a client to appropriately update the server's master sketch.
+	 * Essentially identical to every client's handling of commands to update their local sketches.
+	 * 
+	 * @param cmd	the command as received by the server
+	 * @return	boolean indicating whether the command should be rebroadcast to the clients
+	 */
+	public boolean apply(Command cmd) {
+		switch (cmd.getOp()) { // switch-case conditional based on the operation
+		case Command.ADD: // If it's add
+			history.record(cmd, sketch); // How to take it back out
+			cmd.applyTo(sketch); // Add the shape at the sketch's next ID
 			// Notify the user that someone has added a new shape
-			System.out.println("New " + words[1] + " added at ID " + (sketchStates[currState].getCurID() - 1));
-			return true; // Command was valid
-			
-		case "move": // If the first token was move
-			// Just move the shape in the sketch based on the information given by the broadcast
-			sketchStates[currState].moveShape(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]));
-			return true; // Command was valid
-			
-		case "recolor": // If the first token was recolor
-			// Just recolor the shape in the sketch based on the information given in the broadcast
-			sketchStates[currState].recolorShape(Integer.parseInt(words[1]), new Color(Integer.parseInt(words[2])));
+			System.out.println("New " + Command.shapeName(cmd.getShape()) + " added at ID "
+					+ (sketch.getCurID() - 1));
 			return true; // Command was valid
 			
-		case "remove": // If the first token was remove
-			// Remove the appropriate shape from the sketch based on the broadcast
-			sketchStates[currState].removeShape(Integer.parseInt(words[1]));
+		case Command.MOVE: // Just move the shape in the sketch based on the information given by the broadcast
+		case Command.RECOLOR: // Just recolor the shape in the sketch
+		case Command.REMOVE: // Remove the appropriate shape from the sketch
+		case Command.BOTTOM:
+		case Command.TOP:
+			history.record(cmd, sketch); // How to reverse it, as the sketch stands before it
+			cmd.applyTo(sketch);
 			return true; // Command was valid
 			
-		case "bottom": // If the first token was bottom
-			sketchStates[currState].sendToBottom(Integer.parseInt(words[1]));
-			return true;
-				
-		case "top": // If the first token was top
-			sketchStates[currState].sendToTop(Integer.parseInt(words[1]));
-			return true;
-			
-		case "save_state": // If the first token was save_state
-			if (currState == MAX_SAVED_STATES - 1) { // If this is the last saved state
-				for (int i = 1; i < MAX_SAVED_STATES; i++) {
-					sketchStates[i-1] = sketchStates[i]; // Shift all states down 1
-				} // Note that the current state is still the last state, and it hasn't changed
-			} else { // Otherwise
-				sketchStates[currState + 1] = sketchStates[currState].clone(); // Make a copy of the current state
-				currState++; // and set the current state to that copy
-				// If there are non-null future states
-				if (currState == MAX_SAVED_STATES -1 || sketchStates[currState + 1] != null) { 
-					for (int i = currState + 1; i < MAX_SAVED_STATES; i++) {
-						sketchStates[i] = null; // Delete them (new branch)
-					}
-				}
-			}
+		case Command.SAVE_STATE: // If it was save_state
+			history.checkpoint(); // Start a new step for undo, dropping anything that could have been redone
 			return false; // Don't rebroadcast this command to the clients
 			
-		case "undo": // If the first token was undo
-			if (currState == 0) { // If this is the 0th state
+		case Command.UNDO: // If it was undo
+			List<Command> undone = history.undo(sketch); // Reverse everything since the last save_state
+			if (undone == null) {
 				System.out.println("received \"undo\", but nothing to undo");
-			} else { // Otherwise
-				currState--; // and set the current state to the previous one
-				for (SketchServerCommunicator comm : comms) { // Now, for all communicators
-					comm.update(); // Tell their clients to reset their shapes appropriately
-				}
+			} else {
+				publish(undone); // Now tell all clients just what changed back
 			}
 			return false; // Don't rebroadcast this command to the clients
 			
-		case "redo": // If the first token was redo
-			// Check if there's no valid state to redo to (there's not a next state)
-			if (currState == MAX_SAVED_STATES - 1 || sketchStates[currState + 1] == null) { 
+		case Command.REDO: // If it was redo
+			List<Command> redone = history.redo(sketch); // Put back what the last undo reversed
+			if (redone == null) {
 				System.out.println("received \"redo\", but nothing to redo");
-			} else { // Otherwise
-				currState++; // Move the current state to the next state
-				for (SketchServerCommunicator comm : comms) {
-					comm.update(); // Update all editors
-				}
+			} else {
+				publish(redone); // Update all editors
 			}
 			return false; // Don't rebroadcast this command to the clients
 			
@@ -220,13 +753,46 @@ public class SketchServer {
 		// match their internal sketches with the server's sketch, but the server's Master sketch is the
 		// ultimate determiner of Shape IDs and it never receives any ID-manipulating inputs as such.
 		default:
-			System.out.println("Invalid command " + words[0] + " received."); // Notify user that something's wrong
+			System.out.println("Invalid command " + cmd.toString().split(" ")[0] + " received."); // Notify user that something's wrong
 			return false; // Invalid command received from client
 			// No need to break since this is the last case and no fall through occurs
 		}
 	}
 	
+	/**
+	 * Reads an option giving the size of something that can't be empty; one set below 1 is taken as 1, with a warning,
+	 * rather than breaking the server later on.
+	 */
+	private static int sizeOption(String name, int defaultSize) {
+		int size = Integer.getInteger(name, defaultSize);
+		if (size >= 1) return size;
+		System.out.println(name + " must be at least 1, not " + size + "; using 1");
+		return 1;
+	}
+
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		if (IO_MODE.equals("nio")) {
+			// A selector-driven server: a few I/O threads multiplex all of the client channels
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress(4242));
+			new SketchServerSelector(new SketchServer(listen.socket()), listen, IO_THREADS).getConnections();
+		} else if (IO_MODE.equals("virtual")) {
+			// One virtual SketchServerCommunicator thread per client, accepted on a dedicated platform thread
+			if (VIRTUAL_START == null) System.out.println("virtual threads need Java 21+; using platform threads");
+			SketchServer server = new SketchServer(new ServerSocket(4242));
+			Thread acceptor = new Thread(() -> {
+				try {
+					server.getConnections();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "sketch-acceptor");
+			acceptor.start();
+			acceptor.join();
+		} else {
+			// The classic server: one SketchServerCommunicator thread per client
+			new SketchServer(new ServerSocket(4242)).getConnections();
+		}
 	}
 }
@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handles communication between the server and one client, for SketchServer
@@ -8,91 +9,218 @@ import java.util.Map;
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  * @author Jared Cole, finished problem
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator implements Runnable, ClientCommunicator {
+	private static final byte[] HANG_UP = new byte[0];	// queued to tell the writer to close the connection
+
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private WireReader in;					// from client
+	private OutputStream out;				// to client; only the writer thread touches it
 	private SketchServer server;			// handling communication for
+	private OutboundQueue outbound;			// messages waiting for the writer thread
+	private Thread writer;					// drains outbound into out
+	private volatile boolean admitted;		// whether the client has made it past the password check
+	private Handshake handshake = new Handshake();	// what the client asked for before its password
+	private boolean binary;					// whether output to the client is binary frames rather than text lines
+	private final AtomicBoolean closed = new AtomicBoolean();
+	// Serializes adds to outbound; a lock rather than synchronized so a virtual thread isn't pinned if it has to wait
+	private final ReentrantLock sendLock = new ReentrantLock();
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		this.outbound = new OutboundQueue(SketchServer.QUEUE_SIZE, SketchServer.SLOW_CONSUMER);
 	}
 
 	/**
-	 * Sends a message to the client. Synchronized so this cannot run at the same time as update() below.
+	 * Queues a message for the client. Locked so this cannot run at the same time as admit() below.
+	 * Messages broadcast before the client is past the password check are dropped; the catch-up admit() sends
+	 * covers them.
 	 * @param msg
 	 */
-	public synchronized void send(String msg) {
-		out.println(msg);
+	public void send(Message msg) {
+		sendLock.lock();
+		try {
+			if (admitted) enqueue(msg.encoded(binary));
+		}
+		finally {
+			sendLock.unlock();
+		}
 	}
-	
+
 	/**
-	 * Updates a newly connected client with all of the information currently contained in the master sketch.
-	 * Synchronized so regular broadcasts from the server cannot occur concurrently with the initial update.
+	 * Lets the client in, giving it the current state of the world
 	 */
-	public synchronized void update() {
-		out.println("clear");
-		Map<Integer, Shape> shapes = server.getSketch().getShapes(); // Get the shapes map
-		// Iterate over all IDs in the shapes map
-		for(Integer id : shapes.keySet()){
-			// Instruct the client to perform an ID-based add of the current id and its corresponding shape
-			out.println(id + " " + shapes.get(id));
-		}
-		// Instruct the client to update its own curID to the master sketch's curID
-		out.println("curId " + server.getSketch().getCurID());
+	public void admit() {
+		sendLock.lock();
+		try {
+			if (handshake.getVersion() > 0) {
+				// Confirm the version in text; everything after this line goes to the client as frames
+				enqueue(OutboundQueue.encode("proto " + handshake.getVersion()));
+				binary = true;
+			}
+			admitted = true;
+			// Update the newly connected client with the master sketch's information (or just what it missed)
+			enqueue(server.encodeCatchUp(handshake, binary));
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	public int queueDepth() {
+		return outbound.depth();
 	}
-	
+
+	public int resyncs() {
+		return outbound.getResyncs();
+	}
+
+	public boolean streamsStrokes() {
+		return handshake.getVersion() >= BinaryProtocol.STROKES;
+	}
+
+	/**
+	 * Queues a message under the slow-consumer policy, hanging up if the client is too far behind
+	 */
+	private void enqueue(byte[] msg) {
+		boolean keep;
+		sendLock.lock();
+		try {
+			if (closed.get()) return;
+			keep = outbound.add(msg, () -> server.encodeSnapshot(binary, handshake.isSequenced()));
+		}
+		catch (InterruptedException e) {
+			keep = false; // Gave up waiting for room
+		}
+		finally {
+			sendLock.unlock();
+		}
+		if (!keep) {
+			System.out.println(this + " fell too far behind; disconnecting");
+			close();
+		}
+	}
+
+	/**
+	 * Writes queued messages to the client, flushing whenever the queue runs dry so a burst goes out together
+	 */
+	private void writeLoop() {
+		try {
+			while (true) {
+				byte[] msg = outbound.take();
+				while (msg != null) {
+					if (msg == HANG_UP) {
+						out.flush();
+						sock.close();
+						return;
+					}
+					out.write(msg);
+					msg = outbound.poll();
+				}
+				out.flush();
+			}
+		}
+		catch (InterruptedException | IOException e) {
+			// Connection is being torn down
+		}
+		finally {
+			close();
+		}
+	}
+
 	/**
 	 * Keeps listening for and handling (your code) messages from the client
 	 */
 	public void run() {
+		boolean hangingUp = false; // Whether the writer has been left to close the connection
 		try {
 			System.out.println("someone connected");
 
-			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
-			
+			// Communication channel; all output goes through outbound to the writer thread
+			in = new WireReader(sock.getInputStream());
+			out = new BufferedOutputStream(sock.getOutputStream());
+			writer = SketchServer.startThread(this::writeLoop);
+
 			// Deal with setting/checking the password
-			if (server.numConnections() == 1 && !server.hasPassword()) {
-				out.println("print What would you like the password to be?");
-				server.setPassword(in.readLine()); // Set the password to what the first editor says it should be
+			boolean settingPassword = server.numConnections() == 1 && !server.hasPassword();
+			if (settingPassword) {
+				enqueue(OutboundQueue.encode("print What would you like the password to be?"));
 			} else {
-				out.println("print Please enter the password to connect to this server.");
-				if (!server.checkPassword(in.readLine())) { // If the password is wrong
-					out.println("print Password invalid.");
-					System.out.println("Client attempted connection, but failed password check.");
-					// Clean up and close connection
-					server.removeCommunicator(this);
-					out.close();
-					in.close();
-					sock.close();
-				}
+				enqueue(OutboundQueue.encode("print Please enter the password to connect to this server."));
+			}
+			// Newer editors first send handshake lines (see Handshake); older ones just send the password
+			String line = in.readLine();
+			while (line != null && handshake.offer(line)) {
+				line = in.readLine();
+			}
+			if (line == null) return; // Hung up during the handshake
+			String refusal = null; // Why the client isn't let in, if it isn't
+			if (settingPassword) { // Set the password to what the first editor says it should be, if it can be one
+				if (Handshake.canBePassword(line)) server.setPassword(line);
+				else refusal = "print Passwords can't start with \"proto \"; reconnect to choose another.";
+			} else if (!server.checkPassword(line)) { // If the password is wrong
+				refusal = "print Password invalid.";
+				System.out.println("Client attempted connection, but failed password check.");
+			}
+			if (refusal != null) {
+				enqueue(OutboundQueue.encode(refusal));
+				// Clean up and close connection once the writer gets the message out
+				server.removeCommunicator(this);
+				enqueue(HANG_UP);
+				hangingUp = true;
+				return;
 			}
-			
+
 			// Tell the client the current state of the world
 			//out.println("sketch_start"); deprecated start tokens for the client
-			update(); // Update the newly connected client with the master sketch's information
+			server.admit(this);
 			//out.println("eof"); deprecated
-			
-			// Keep getting and handling messages from the client
-			String line; // Variable to hold the current line
-			while ((line = in.readLine()) != null) { // Block until messages received by client
-				// System.out.println("received \"" + line + "\"."); Useful for debugging, but floods console
-				if (server.parseLine(line)) { // Call parseLine() to appropriately update the master sketch
-					server.broadcast(line); // and broadcast the line received to all clients if the command is valid
+
+			// Keep getting and handling messages from the client, in text until it echoes the "proto" line to say
+			// that everything after is frames
+			boolean binaryIn = false;
+			while (true) { // Block until messages received by client
+				if (binaryIn) {
+					Command cmd = in.readFrame();
+					if (cmd == null) break; // Client hung up
+					if (cmd.isStroke()) server.handleStroke(this, cmd); // Part of a stroke being drawn
+					else server.handle(cmd); // Update the master sketch and broadcast the command if it is valid
+				} else {
+					line = in.readLine();
+					if (line == null) break; // Client hung up
+					// System.out.println("received \"" + line + "\"."); Useful for debugging, but floods console
+					if (binary && line.startsWith("proto ")) binaryIn = true;
+					else server.handleLine(line); // Update the master sketch and broadcast the line if it is valid
 				}
 			}
-			
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
+		}
+		catch (IOException e) {
+			if (!closed.get()) e.printStackTrace();
+		}
+		finally {
+			if (!hangingUp) close();
+		}
+	}
+
+	/**
+	 * Cleans up -- note that also removes self from server's list so it doesn't broadcast here.
+	 * A broadcast may be holding the server's lock while it waits for room in this client's queue (BLOCK policy), so
+	 * the queue is closed, freeing it, before the server's lock is taken to remove self.
+	 */
+	private void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		outbound.close();
+		if (writer != null) writer.interrupt();
+		try {
 			sock.close();
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		server.removeCommunicator(this);
+	}
+
+	public String toString() {
+		return "client " + sock.getRemoteSocketAddress();
 	}
 }
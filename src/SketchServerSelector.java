@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking front end for SketchServer (selected with -Dsketch.io=nio).
+ * Instead of one blocked thread per editor, connections are accepted here and handed round-robin to a small,
+ * fixed set of selector threads, each of which reads, frames, and writes lines for many ChannelCommunicators.
+ */
+public class SketchServerSelector {
+	private SketchServer server;			// the server whose master sketch the clients share
+	private ServerSocketChannel listen;		// for accepting connections
+	private IOLoop[] loops;					// the selector threads
+	private int nextLoop;					// which loop gets the next connection
+
+	public SketchServerSelector(SketchServer server, ServerSocketChannel listen, int numThreads) throws IOException {
+		this.server = server;
+		this.listen = listen;
+		loops = new IOLoop[Math.max(1, numThreads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new IOLoop(i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * The usual loop of accepting connections, except that each one is registered with a selector thread
+	 * rather than getting a thread of its own
+	 */
+	public void getConnections() throws IOException {
+		System.out.println("server ready for connections (nio, " + loops.length + " I/O threads)");
+		while (true) {
+			SocketChannel channel = listen.accept(); // The listening channel stays blocking; only clients are multiplexed
+			channel.configureBlocking(false);
+			IOLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+
+			ChannelCommunicator comm = new ChannelCommunicator(channel, server, loop);
+			server.addCommunicator(comm);
+			loop.register(comm); // Greets the client too, on the loop's thread
+		}
+	}
+
+	/**
+	 * One selector thread. Other threads never touch its selector directly; they queue tasks with execute(),
+	 * which the loop runs between selects.
+	 */
+	public static class IOLoop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		public IOLoop(int index) throws IOException {
+			super("sketch-io-" + index);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on this loop's thread, waking the selector so it happens promptly
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Greets the communicator's client and registers its channel with this loop's selector, both on this loop's
+		 * thread: the greeting decides whether the client is setting the password, which handling its input (also
+		 * only ever on this thread) relies on, and it comes first, so not even a password the client sent without
+		 * waiting for the prompt can be read before it.
+		 */
+		public void register(ChannelCommunicator comm) {
+			execute(() -> {
+				try {
+					comm.greet();
+					comm.register(selector);
+				}
+				catch (IOException e) {
+					comm.close();
+				}
+			});
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+
+				// First run anything other threads asked for (registrations, write interest)
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					}
+					catch (RuntimeException e) { // Mustn't stop the loop for every other client
+						e.printStackTrace();
+					}
+				}
+
+				// Then service every channel that is ready
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ChannelCommunicator comm = (ChannelCommunicator) key.attachment();
+					try {
+						if (key.isReadable()) comm.handleRead();
+						if (key.isValid() && key.isWritable()) comm.handleWrite();
+					}
+					catch (IOException | CancelledKeyException e) {
+						comm.close(); // A broken connection just drops that one client
+					}
+					catch (RuntimeException e) { // A bug handling one client's input drops that client, not the loop
+						System.out.println(comm + " caused " + e + "; disconnecting");
+						e.printStackTrace();
+						comm.close();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A saved sketch in a fixed binary layout, so it can be memory-mapped and read in place rather than parsed: loading
+ * costs the same however many shapes there are, and a shape is only turned into a Shape object when it's needed
+ * (see Sketch).
+ *
+ * Layout (big-endian ints and longs):
+ *   header		magic "SKS2", epoch, seq, curID, leastID, shape count, point count, checksum of the header
+ *   shapes		one fixed-size record per shape, in ID (drawing) order: ID, type, RGB, then the corners for a
+ *				rectangle, ellipse, or segment, or the bounding box for a polyline; then, for a polyline, where its
+ *				points start in the point region and how many there are
+ *   points		x, y for every polyline point, each polyline's together
+ *
+ * Only the header is checksummed, since checking the rest would mean reading all of it; a snapshot is forced to disk
+ * before being renamed into place (see Journal), so a crash can't leave one half-written.
+ */
+public class SnapshotFile {
+	private static final int MAGIC = 0x534b5332;	// "SKS2"
+	private static final int HEADER = 40, RECORD = 36, POINT = 8;	// sizes in bytes
+	private static final byte RECT = 1, ELLIPSE = 2, SEGMENT = 3, POLYLINE = 4;
+	private static final int MARGIN = 3;	// how far outside its bounds a shape can still contain a point (segments)
+
+	private ByteBuffer map;			// the whole file
+	private long epoch, seq;
+	private int curID, leastID;
+	private int count;				// shapes
+	private int points;				// where the point region starts
+
+	private SnapshotFile(ByteBuffer map) throws IOException {
+		this.map = map;
+		if (map.capacity() < HEADER || map.getInt(0) != MAGIC) throw new IOException("not a snapshot");
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < HEADER - 4; i++) crc.update(map.get(i));
+		if (map.getInt(HEADER - 4) != (int) crc.getValue()) throw new IOException("snapshot header is corrupt");
+		epoch = map.getLong(4);
+		seq = map.getLong(12);
+		curID = map.getInt(20);
+		leastID = map.getInt(24);
+		count = map.getInt(28);
+		int pointCount = map.getInt(32);
+		points = HEADER + count * RECORD;
+		if (map.capacity() != (long) points + (long) pointCount * POINT) throw new IOException("snapshot is cut short");
+	}
+
+	/**
+	 * Maps a snapshot file, checking its header.
+	 *
+	 * @throws IOException	if it can't be read or isn't a whole snapshot
+	 */
+	public static SnapshotFile map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new SnapshotFile(map); // The mapping outlives the channel
+		}
+	}
+
+	/**
+	 * Lays out a sketch as a snapshot, ready to be written to a file.
+	 *
+	 * @param epoch	the server run the sequence number belongs to
+	 * @param seq	the sequence number the sketch is at
+	 */
+	public static ByteBuffer encode(long epoch, long seq, Sketch sketch) {
+		Sketch version = sketch.clone(); // One version throughout, without holding up edits meanwhile
+		// Sized up front, so the records and the points can each be written straight into place
+		int[] pointCount = new int[1];
+		version.forEachShape((id, shape) -> {
+			if (shape instanceof Polyline) pointCount[0] += ((Polyline) shape).size();
+		});
+		int count = version.size();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER + count * RECORD + pointCount[0] * POINT);
+		buf.putInt(MAGIC).putLong(epoch).putLong(seq).putInt(version.getCurID()).putInt(version.getLeastID())
+				.putInt(count).putInt(pointCount[0]);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, HEADER - 4);
+		buf.putInt((int) crc.getValue());
+		int[] at = {HEADER, HEADER + count * RECORD, 0};	// next record, next point, its index
+		version.forEachShape((id, shape) -> {
+			int r = at[0];
+			at[0] += RECORD;
+			buf.putInt(r, id);
+			buf.putInt(r + 8, shape.getColor().getRGB());
+			if (shape instanceof Polyline) {
+				Polyline polyline = (Polyline) shape;
+				int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+				int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+				for (int i = 0; i < polyline.size(); i++) {
+					int x = polyline.getX(i), y = polyline.getY(i);
+					buf.putInt(at[1], x).putInt(at[1] + 4, y);
+					at[1] += POINT;
+					minX = Math.min(minX, x); minY = Math.min(minY, y);
+					maxX = Math.max(maxX, x); maxY = Math.max(maxY, y);
+				}
+				buf.putInt(r + 4, POLYLINE);
+				putCorners(buf, r, minX, minY, maxX, maxY);
+				buf.putInt(r + 28, at[2]).putInt(r + 32, polyline.size());
+				at[2] += polyline.size();
+			} else if (shape instanceof Rectangle) {
+				Rectangle s = (Rectangle) shape;
+				buf.putInt(r + 4, RECT);
+				putCorners(buf, r, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+			} else if (shape instanceof Ellipse) {
+				Ellipse s = (Ellipse) shape;
+				buf.putInt(r + 4, ELLIPSE);
+				putCorners(buf, r, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+			} else {
+				Segment s = (Segment) shape;
+				buf.putInt(r + 4, SEGMENT);
+				putCorners(buf, r, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+			}
+		});
+		buf.clear(); // The whole buffer, for writing out
+		return buf;
+	}
+
+	private static void putCorners(ByteBuffer buf, int r, int x1, int y1, int x2, int y2) {
+		buf.putInt(r + 12, x1).putInt(r + 16, y1).putInt(r + 20, x2).putInt(r + 24, y2);
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public int getCurID() {
+		return curID;
+	}
+
+	public int getLeastID() {
+		return leastID;
+	}
+
+	/**
+	 * Returns how many shapes there are.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the ID of the shape at the given index (IDs increase with the index).
+	 */
+	public int id(int index) {
+		return map.getInt(HEADER + index * RECORD);
+	}
+
+	/**
+	 * Finds the index of the shape with the given ID, by binary search over the records.
+	 *
+	 * @return	the index, or -1 if there's no such shape
+	 */
+	public int indexOf(int id) {
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int at = id(mid);
+			if (at < id) lo = mid + 1;
+			else if (at > id) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a box around every point the shape at the given index could contain, without building it, so most
+	 * shapes can be ruled out (or indexed; see ShapeGrid) without building them.
+	 */
+	public Bounds bounds(int index) {
+		int r = HEADER + index * RECORD;
+		return Bounds.of(map.getInt(r + 12), map.getInt(r + 16), map.getInt(r + 20), map.getInt(r + 24), MARGIN);
+	}
+
+	/**
+	 * Builds the shape at the given index. Each call returns a new Shape, which the caller is free to change.
+	 */
+	public Shape shape(int index) {
+		int r = HEADER + index * RECORD;
+		int type = map.getInt(r + 4);
+		Color color = Colors.of(map.getInt(r + 8));
+		if (type == POLYLINE) {
+			int first = map.getInt(r + 28), n = map.getInt(r + 32);
+			int[] xs = new int[n], ys = new int[n];
+			for (int i = 0, p = points + first * POINT; i < n; i++, p += POINT) {
+				xs[i] = map.getInt(p);
+				ys[i] = map.getInt(p + 4);
+			}
+			return new Polyline(xs, ys, n, color);
+		}
+		int x1 = map.getInt(r + 12), y1 = map.getInt(r + 16), x2 = map.getInt(r + 20), y2 = map.getInt(r + 24);
+		switch (type) {
+		case RECT: return new Rectangle(x1, y1, x2, y2, color);
+		case ELLIPSE: return new Ellipse(x1, y1, x2, y2, color);
+		case SEGMENT: return new Segment(x1, y1, x2, y2, color);
+		default: throw new IllegalStateException("unknown shape type " + type + " in snapshot");
+		}
+	}
+}
@@ -0,0 +1,390 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The text form of the sketch protocol (one line per command, e.g. "move 3 10 -2" or "add rect 1 2 30 40 -16777216"),
+ * shared by the server and the editor.
+ *
+ * Lines are decoded in a single pass over their characters, straight into the numbers and shapes they describe, and
+ * encoded straight to bytes, so there are none of the token arrays, substrings, and intermediate Strings that
+ * split()/parseInt() and string concatenation leave behind for every message. Colors come from a small cache
+ * (see Colors) rather than being constructed anew each time.
+ */
+public class TextCodec {
+	/**
+	 * Decodes a line of the text protocol (without its newline), the inverse of encode().
+	 *
+	 * @param line	the line as received
+	 * @return	the command, or null if the line isn't a valid command
+	 */
+	public static Command decode(String line) {
+		Cursor in = new Cursor(line);
+		Command cmd;
+		try {
+			switch (line.isEmpty() ? ' ' : line.charAt(0)) { // Only look at the whole keyword once it's a candidate
+			case 'a':
+				in.keyword("add");
+				cmd = Command.add(readShape(in));
+				break;
+			case 'm':
+				in.keyword("move");
+				cmd = Command.move(in.nextInt(), in.nextInt(), in.nextInt());
+				break;
+			case 'r':
+				if (in.tryKeyword("recolor")) cmd = Command.recolor(in.nextInt(), in.nextInt());
+				else if (in.tryKeyword("remove")) cmd = Command.withId(Command.REMOVE, in.nextInt());
+				else if (in.tryKeyword("redo")) cmd = Command.of(Command.REDO);
+				else return null;
+				break;
+			case 'b':
+				in.keyword("bottom");
+				cmd = Command.withId(Command.BOTTOM, in.nextInt());
+				break;
+			case 't':
+				in.keyword("top");
+				cmd = Command.withId(Command.TOP, in.nextInt());
+				break;
+			case 's':
+				if (in.tryKeyword("save_state")) cmd = Command.of(Command.SAVE_STATE);
+				else if (in.tryKeyword("seq")) cmd = Command.seq(in.nextLong(), in.nextLong());
+				else return null;
+				break;
+			case 'u':
+				in.keyword("undo");
+				cmd = Command.of(Command.UNDO);
+				break;
+			case 'c':
+				if (in.tryKeyword("clear")) cmd = Command.of(Command.CLEAR);
+				else if (in.tryKeyword("curId")) cmd = Command.withId(Command.CUR_ID, in.nextInt());
+				else return null;
+				break;
+			case 'p':
+				in.keyword("print");
+				if (in.pos >= line.length()) return null; // "print" needs a space, even if nothing follows it
+				cmd = Command.print(line.substring(in.pos + 1)); // Everything after "print "
+				break;
+			default:
+				// Otherwise the line should be an ID-based add: the ID to put the shape at, then the shape
+				cmd = Command.addAt(in.nextIntToken(), readShape(in));
+			}
+		}
+		catch (IllegalArgumentException e) { // Missing, malformed, or out-of-range tokens
+			return null;
+		}
+		cmd.setLine(line); // Echo the line back exactly as received rather than re-rendering it
+		return cmd;
+	}
+
+	/**
+	 * Reads a shape in its toString() representation, starting with the space before its type token.
+	 */
+	private static Shape readShape(Cursor in) {
+		in.space();
+		switch (in.peek()) {
+		// The rectangle, ellipse, and segment behave generally similarly, because their representations contain a
+		// fixed number of tokens: the two defining corners (or endpoints), then the color
+		case 'r':
+			in.keyword("rect");
+			return new Rectangle(in.nextInt(), in.nextInt(), in.nextInt(), in.nextInt(), Colors.of(in.nextInt()));
+		case 'e':
+			in.keyword("ellipse");
+			return new Ellipse(in.nextInt(), in.nextInt(), in.nextInt(), in.nextInt(), Colors.of(in.nextInt()));
+		case 's':
+			in.keyword("segment");
+			return new Segment(in.nextInt(), in.nextInt(), in.nextInt(), in.nextInt(), Colors.of(in.nextInt()));
+		// While polylines have a variable number of points, as " [x,y;x,y;...]"
+		case 'p':
+			in.keyword("polyline");
+			in.space();
+			in.expect('[');
+			int[] xs = new int[8], ys = new int[8];
+			int n = 0;
+			do {
+				if (n == xs.length) { // Grown as needed, since the count isn't given up front
+					xs = Arrays.copyOf(xs, n * 2);
+					ys = Arrays.copyOf(ys, n * 2);
+				}
+				xs[n] = in.readInt();
+				in.expect(',');
+				ys[n++] = in.readInt();
+			} while (in.tryExpect(';') && in.peek() != ']'); // A trailing ; has always been tolerated
+			in.expect(']');
+			return new Polyline(xs, ys, n, Colors.of(in.nextInt()));
+		default:
+			throw new IllegalArgumentException("unknown shape");
+		}
+	}
+
+	/**
+	 * Encodes a command as a line, newline included.
+	 */
+	public static byte[] encode(Command cmd) {
+		Writer out = new Writer(cmd.getOp() == Command.ADD || cmd.getOp() == Command.ADD_AT ? 64 : 24);
+		write(cmd, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Appends a command's line, newline included, to out.
+	 */
+	public static void write(Command cmd, ByteArrayOutputStream out) {
+		Writer line = new Writer(64);
+		write(cmd, line);
+		out.write(line.buf, 0, line.length);
+	}
+
+	/**
+	 * Encodes a line that is already text (such as a line being echoed), newline included.
+	 */
+	public static byte[] encode(String line) {
+		byte[] bytes = new byte[line.length() + 1];
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c >= 0x80) return (line + "\n").getBytes(StandardCharsets.UTF_8); // Not plain ASCII after all
+			bytes[i] = (byte) c;
+		}
+		bytes[line.length()] = '\n';
+		return bytes;
+	}
+
+	private static void write(Command cmd, Writer out) {
+		switch (cmd.getOp()) {
+		case Command.ADD: out.ascii("add "); writeShape(cmd.getShape(), out); break;
+		case Command.ADD_AT: out.number(cmd.getId()); out.put(' '); writeShape(cmd.getShape(), out); break;
+		case Command.MOVE:
+			out.ascii("move "); out.number(cmd.getId());
+			out.put(' '); out.number(cmd.getDx());
+			out.put(' '); out.number(cmd.getDy());
+			break;
+		case Command.RECOLOR: out.ascii("recolor "); out.number(cmd.getId()); out.put(' '); out.number(cmd.getRGB()); break;
+		case Command.REMOVE: out.ascii("remove "); out.number(cmd.getId()); break;
+		case Command.BOTTOM: out.ascii("bottom "); out.number(cmd.getId()); break;
+		case Command.TOP: out.ascii("top "); out.number(cmd.getId()); break;
+		case Command.SAVE_STATE: out.ascii("save_state"); break;
+		case Command.UNDO: out.ascii("undo"); break;
+		case Command.REDO: out.ascii("redo"); break;
+		case Command.CLEAR: out.ascii("clear"); break;
+		case Command.CUR_ID: out.ascii("curId "); out.number(cmd.getId()); break;
+		case Command.SEQ:
+			out.ascii("seq "); out.number(cmd.getSeq());
+			out.put(' '); out.number(cmd.getEpoch());
+			break;
+		case Command.PRINT:
+			out.ascii("print ");
+			byte[] text = cmd.getText().getBytes(StandardCharsets.UTF_8);
+			out.bytes(text, text.length);
+			break;
+		}
+		out.put('\n');
+	}
+
+	/**
+	 * Writes a shape in its toString() representation.
+	 */
+	private static void writeShape(Shape shape, Writer out) {
+		if (shape instanceof Polyline) {
+			out.ascii("polyline [");
+			Polyline polyline = (Polyline) shape;
+			for (int i = 0; i < polyline.size(); i++) {
+				if (i > 0) out.put(';'); // Use a ; to delimit points
+				out.number(polyline.getX(i));
+				out.put(',');
+				out.number(polyline.getY(i));
+			}
+			out.put(']');
+		} else {
+			int x1, y1, x2, y2;
+			if (shape instanceof Rectangle) {
+				Rectangle r = (Rectangle) shape;
+				out.ascii("rect");
+				x1 = r.getX1(); y1 = r.getY1(); x2 = r.getX2(); y2 = r.getY2();
+			} else if (shape instanceof Ellipse) {
+				Ellipse e = (Ellipse) shape;
+				out.ascii("ellipse");
+				x1 = e.getX1(); y1 = e.getY1(); x2 = e.getX2(); y2 = e.getY2();
+			} else {
+				Segment s = (Segment) shape;
+				out.ascii("segment");
+				x1 = s.getX1(); y1 = s.getY1(); x2 = s.getX2(); y2 = s.getY2();
+			}
+			out.put(' '); out.number(x1);
+			out.put(' '); out.number(y1);
+			out.put(' '); out.number(x2);
+			out.put(' '); out.number(y2);
+		}
+		out.put(' ');
+		out.number(shape.getColor().getRGB());
+	}
+
+	/**
+	 * A cursor over one line being decoded. Tokens are separated by single spaces, as split(" ") expected;
+	 * anything after the last token a command needs is ignored, as it always has been.
+	 */
+	private static class Cursor {
+		private String line;
+		private int pos;
+
+		Cursor(String line) {
+			this.line = line;
+		}
+
+		char peek() {
+			if (pos >= line.length()) throw new IllegalArgumentException("line ended early");
+			return line.charAt(pos);
+		}
+
+		/**
+		 * Consumes the given keyword, which must be a whole token.
+		 */
+		void keyword(String word) {
+			if (!tryKeyword(word)) throw new IllegalArgumentException("expected " + word);
+		}
+
+		boolean tryKeyword(String word) {
+			int end = pos + word.length();
+			if (!line.startsWith(word, pos) || (end < line.length() && line.charAt(end) != ' ')) return false;
+			pos = end;
+			return true;
+		}
+
+		void expect(char c) {
+			if (peek() != c) throw new IllegalArgumentException("expected " + c);
+			pos++;
+		}
+
+		boolean tryExpect(char c) {
+			if (pos >= line.length() || line.charAt(pos) != c) return false;
+			pos++;
+			return true;
+		}
+
+		void space() {
+			expect(' ');
+		}
+
+		/**
+		 * Reads the next token, after its space, as an int.
+		 */
+		int nextInt() {
+			space();
+			return nextIntToken();
+		}
+
+		/**
+		 * Reads the next token, after its space, as a long.
+		 */
+		long nextLong() {
+			space();
+			long value = readNumber(Long.MIN_VALUE, Long.MAX_VALUE);
+			endToken();
+			return value;
+		}
+
+		/**
+		 * Reads a token starting right here as an int, like Integer.parseInt() would.
+		 */
+		int nextIntToken() {
+			int value = readInt();
+			endToken();
+			return value;
+		}
+
+		/**
+		 * Makes sure a number token ended where it should have.
+		 */
+		private void endToken() {
+			if (pos < line.length() && line.charAt(pos) != ' ') throw new IllegalArgumentException("not a number");
+		}
+
+		/**
+		 * Reads an optionally signed decimal int, stopping at the first non-digit.
+		 */
+		int readInt() {
+			return (int) readNumber(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Reads an optionally signed decimal number in the given range, stopping at the first non-digit.
+		 */
+		private long readNumber(long min, long max) {
+			boolean negative = tryExpect('-');
+			if (!negative) tryExpect('+');
+			long value = 0; // Accumulated negatively, since the negative range is the bigger one
+			int start = pos;
+			while (pos < line.length()) {
+				char c = line.charAt(pos);
+				if (c < '0' || c > '9') break;
+				if (value < (min + (c - '0')) / 10) throw new IllegalArgumentException("number out of range");
+				value = value * 10 - (c - '0');
+				pos++;
+			}
+			if (pos == start) throw new IllegalArgumentException("not a number");
+			if (!negative) {
+				if (value < -max) throw new IllegalArgumentException("number out of range");
+				value = -value;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * A growable byte buffer for one line being encoded; unlike ByteArrayOutputStream, not synchronized
+	 */
+	private static class Writer {
+		private byte[] buf;
+		private int length;
+
+		Writer(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		private void ensureCapacity(int more) {
+			if (length + more > buf.length) {
+				byte[] bigger = new byte[Math.max(length + more, buf.length * 2)];
+				System.arraycopy(buf, 0, bigger, 0, length);
+				buf = bigger;
+			}
+		}
+
+		void put(char c) {
+			ensureCapacity(1);
+			buf[length++] = (byte) c;
+		}
+
+		void ascii(String s) {
+			ensureCapacity(s.length());
+			for (int i = 0; i < s.length(); i++) buf[length++] = (byte) s.charAt(i);
+		}
+
+		void bytes(byte[] b, int n) {
+			ensureCapacity(n);
+			System.arraycopy(b, 0, buf, length, n);
+			length += n;
+		}
+
+		/**
+		 * Writes a number in decimal, as Long.toString() would.
+		 */
+		void number(long value) {
+			ensureCapacity(20); // Enough for "-9223372036854775808"
+			if (value < 0) buf[length++] = '-';
+			else value = -value; // Work with the negative, which can hold the most negative long
+			int digits = 1;
+			for (long v = value / 10; v != 0; v /= 10) digits++;
+			for (int i = length + digits - 1; i >= length; i--) {
+				buf[i] = (byte) ('0' - value % 10);
+				value /= 10;
+			}
+			length += digits;
+		}
+
+		byte[] toByteArray() {
+			if (length == buf.length) return buf; // Guessed the size exactly, so no copy needed
+			byte[] exact = new byte[length];
+			System.arraycopy(buf, 0, exact, 0, length);
+			return exact;
+		}
+	}
+}
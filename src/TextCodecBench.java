@@ -0,0 +1,67 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Measures what handling one text line costs the server, in bytes allocated and time, with TextCodec and with the
+ * split()-based parsing it replaced (see TextCodecCheck.splitParse()): decoding the line, then producing the bytes
+ * to broadcast (the old way echoed the line it got; TextCodec encodes the command).
+ *
+ * Not part of the server; run it by hand after changing TextCodec or Command's encodings:
+ *
+ *   java TextCodecBench
+ *
+ * Allocation is read from the JVM's per-thread counter (com.sun.management.ThreadMXBean, in HotSpot JVMs); where
+ * that isn't available only times are given.
+ */
+public class TextCodecBench {
+	private static final int WARMUP = 300000, MESSAGES = 1000000;
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static long sink; // Keeps the JIT from dropping the work as unused
+
+	public static void main(String[] args) {
+		StringBuilder polyline = new StringBuilder("add polyline [");
+		for (int i = 0; i < 50; i++) {
+			polyline.append(i == 0 ? "" : ";").append(100 + 3 * i).append(',').append(200 - i);
+		}
+		polyline.append("] -65536");
+		String[][] messages = { { "move", "move 12 -3 4" }, { "recolor", "recolor 7 -16776961" },
+				{ "add rect", "add rect 10 20 300 400 -16777216" }, { "polyline, 50 points", polyline.toString() } };
+		System.out.printf("%-22s %12s %12s %10s %10s%n",
+				"message", "split B/msg", "codec B/msg", "split ns", "codec ns");
+		for (String[] message : messages) {
+			double[] split = measure(message[1], line -> {
+				TextCodecCheck.splitParse(line);
+				return (line + "\n").getBytes(StandardCharsets.UTF_8);
+			});
+			double[] codec = measure(message[1], line -> TextCodec.decode(line).textBytes());
+			System.out.printf("%-22s %12s %12s %10.0f %10.0f%n", message[0], bytes(split[0]), bytes(codec[0]),
+					split[1], codec[1]);
+		}
+	}
+
+	/**
+	 * Handles the line MESSAGES times (after WARMUP times unmeasured), returning the bytes allocated and the
+	 * nanoseconds taken per message; bytes are -1 if the JVM doesn't count them.
+	 */
+	private static double[] measure(String line, Function<String, byte[]> handle) {
+		for (int i = 0; i < WARMUP; i++) sink += handle.apply(line).length;
+		long before = allocated(), start = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++) sink += handle.apply(line).length;
+		long time = System.nanoTime() - start, after = allocated();
+		return new double[] { before < 0 ? -1 : (after - before) / (double) MESSAGES, time / (double) MESSAGES };
+	}
+
+	/**
+	 * Returns how many bytes this thread has allocated so far, or -1 if the JVM doesn't say.
+	 */
+	private static long allocated() {
+		if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String bytes(double perMessage) {
+		return perMessage < 0 ? "n/a" : String.format("%.0f", perMessage);
+	}
+}
@@ -0,0 +1,218 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that TextCodec reads and writes the text protocol exactly as the split()-based parsing and toString()
+ * rendering it replaced did, on hand-picked edge cases and a few hundred thousand random lines and commands.
+ * The replaced parser is kept here (see splitParse()) as the reference.
+ *
+ * Not part of the server; run it by hand after changing TextCodec (or a shape's toString()):
+ *
+ *   java TextCodecCheck [seed]
+ *
+ * Prints each disagreement and a summary, and exits with status 1 if there were any. The codec may reject lines the
+ * old parser let through (trailing junk, out-of-range numbers); those are counted, not failed.
+ */
+public class TextCodecCheck {
+	private static final int LINES = 200000, COMMANDS = 100000;
+	private static final String[] EDGE_CASES = {
+		"", " ", "add", "add rect 1 2 3 4 5", "add rect 1 2 3 4", "add rect 1 2 3 4 5 6", "add rect  1 2 3 4 5",
+		"move 1 2 3", "move 1 2", "move 1 2 3 ", "move -1 +2 -2147483648", "move 1 2 2147483648", "movex 1 2 3",
+		"recolor 3 -16777216", "remove 4", "redo", "redo 5", "undo", "save_state", "clear", "curId 7", "bottom 2",
+		"top 9", "print hello world", "print ", "print", "printx y", "5 rect 1 2 3 4 5", "-3 ellipse 1 2 3 4 -65536",
+		"x rect 1 2 3 4 5", "add polyline [1,1;5,5;9,2] -65536", "add polyline [1,1] 7", "add polyline [] 7",
+		"add polyline [1,1;] 7", "3 polyline [1,-1;+5,5] 1", "add segment 1 2 3 4 5", "add ellipse 1 2 3 4 5",
+		"add tri 1 2 3", "remove", "remove x", "move 1 2 3x", "recolor 1 2 3", "add polyline [1,1;2,2 3", "top 1 2",
+		"curId", "add rect 1 2 3 4 99999999999"
+	};
+
+	public static void main(String[] args) {
+		Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 42);
+		int failures = checkDecoding(random) + checkEncoding(random);
+		System.out.println(failures == 0 ? "TextCodec agrees" : failures + " disagreements");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Decodes the edge cases and LINES random lines (made of command words, shape names, numbers, points and junk)
+	 * both ways; returns how many came out differently.
+	 */
+	private static int checkDecoding(Random random) {
+		List<String> lines = new ArrayList<String>(Arrays.asList(EDGE_CASES));
+		String[] words = { "add", "move", "recolor", "remove", "bottom", "top", "save_state", "undo", "redo", "clear",
+				"curId", "print", "12", "-4" };
+		String[] shapes = { "rect", "ellipse", "segment", "polyline" };
+		for (int i = 0; i < LINES; i++) {
+			StringBuilder line = new StringBuilder(words[random.nextInt(words.length)]);
+			if (random.nextInt(3) == 0) line.append(' ').append(shapes[random.nextInt(shapes.length)]);
+			for (int n = random.nextInt(7); n > 0; n--) {
+				line.append(' ');
+				switch (random.nextInt(10)) {
+				case 0:
+					line.append('[').append(random.nextInt(20) - 10).append(',').append(random.nextInt(20))
+							.append(random.nextBoolean() ? ";3,4" : "").append(']');
+					break;
+				case 1: // An empty token (two spaces)
+					break;
+				case 2:
+					line.append('z');
+					break;
+				default:
+					line.append(random.nextInt(2000) - 1000);
+				}
+			}
+			lines.add(line.toString());
+		}
+		int mismatches = 0, valid = 0, stricter = 0;
+		for (String line : lines) {
+			Command expected = splitParse(line), actual = TextCodec.decode(line);
+			if (actual != null) valid++;
+			if (sameCommand(expected, actual)) continue;
+			if (actual == null) {
+				stricter++; // Tolerated (see above)
+			} else {
+				mismatches++;
+				System.out.println("decodes differently: \"" + line + "\"");
+			}
+		}
+		System.out.println("decoding: " + lines.size() + " lines, " + valid + " valid, " + mismatches
+				+ " decoded differently, " + stricter + " rejected only by TextCodec");
+		return mismatches;
+	}
+
+	/**
+	 * Encodes COMMANDS random commands of each kind that has a text form, comparing the bytes with the toString()
+	 * rendering the protocol used to be written with, and decodes that rendering back; returns how many differed.
+	 */
+	private static int checkEncoding(Random random) {
+		int mismatches = 0;
+		for (int i = 0; i < COMMANDS; i++) {
+			Shape shape = randomShape(random);
+			Command[] cmds = { Command.add(shape), Command.addAt(random.nextInt(), shape),
+					Command.move(random.nextInt(), random.nextInt(), Integer.MIN_VALUE),
+					Command.recolor(random.nextInt(100), random.nextInt()),
+					Command.withId(Command.CUR_ID, random.nextInt()), Command.print("h\u00e9llo " + i) };
+			String[] rendered = { "add " + shape, cmds[1].getId() + " " + shape,
+					"move " + cmds[2].getId() + " " + cmds[2].getDx() + " " + cmds[2].getDy(),
+					"recolor " + cmds[3].getId() + " " + cmds[3].getRGB(), "curId " + cmds[4].getId(),
+					"print h\u00e9llo " + i };
+			for (int k = 0; k < cmds.length; k++) {
+				if (!Arrays.equals(TextCodec.encode(cmds[k]), (rendered[k] + "\n").getBytes(StandardCharsets.UTF_8))) {
+					mismatches++;
+					System.out.println("encodes differently: " + rendered[k]);
+				}
+				if (!sameCommand(cmds[k], TextCodec.decode(rendered[k]))) {
+					mismatches++;
+					System.out.println("doesn't round-trip: " + rendered[k]);
+				}
+			}
+		}
+		System.out.println("encoding: " + COMMANDS * 6 + " commands, " + mismatches + " differences");
+		return mismatches;
+	}
+
+	/**
+	 * Returns a shape of a random kind, with coordinates from small to extreme.
+	 */
+	private static Shape randomShape(Random random) {
+		Color color = new Color(random.nextInt());
+		int x1 = random.nextInt() >> random.nextInt(32), y1 = random.nextInt(1000) - 500;
+		switch (random.nextInt(4)) {
+		case 0:
+			return new Rectangle(x1, y1, random.nextInt(), random.nextInt(50), color);
+		case 1:
+			return new Ellipse(x1, y1, random.nextInt(100), Integer.MIN_VALUE, color);
+		case 2:
+			return new Segment(x1, y1, random.nextInt(100), random.nextInt(100), color);
+		default:
+			List<Point> points = new ArrayList<Point>();
+			for (int n = random.nextInt(10); n >= 0; n--) {
+				points.add(new Point(random.nextInt(2000) - 1000, random.nextInt()));
+			}
+			return new Polyline(points, color);
+		}
+	}
+
+	/**
+	 * Returns whether the two commands (either of which may be null) are the same, judged by their binary encodings.
+	 */
+	private static boolean sameCommand(Command a, Command b) {
+		if (a == null || b == null) return a == b;
+		return Arrays.equals(BinaryProtocol.encode(a), BinaryProtocol.encode(b));
+	}
+
+	/**
+	 * Parses a line the way the server and editor did before TextCodec, by splitting it into tokens; null if it
+	 * isn't a valid command. The reference the codec is checked against (and, in TextCodecBench, measured against).
+	 */
+	static Command splitParse(String input) {
+		try {
+			String[] words = input.split(" ");
+			switch (words[0]) {
+			case "add":
+				return Command.add(splitParseShape(words, 1));
+			case "move":
+				return Command.move(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]));
+			case "recolor":
+				return Command.recolor(Integer.parseInt(words[1]), Integer.parseInt(words[2]));
+			case "remove":
+				return Command.withId(Command.REMOVE, Integer.parseInt(words[1]));
+			case "bottom":
+				return Command.withId(Command.BOTTOM, Integer.parseInt(words[1]));
+			case "top":
+				return Command.withId(Command.TOP, Integer.parseInt(words[1]));
+			case "save_state":
+				return Command.of(Command.SAVE_STATE);
+			case "undo":
+				return Command.of(Command.UNDO);
+			case "redo":
+				return Command.of(Command.REDO);
+			case "clear":
+				return Command.of(Command.CLEAR);
+			case "curId":
+				return Command.withId(Command.CUR_ID, Integer.parseInt(words[1]));
+			case "print":
+				return Command.print(input.split(" ", 2)[1]); // Everything after "print "
+			default: // An ID-based add: the ID to put the shape at, then the shape
+				return Command.addAt(Integer.parseInt(words[0]), splitParseShape(words, 1));
+			}
+		}
+		catch (RuntimeException e) { // Missing or non-numeric tokens
+			return null;
+		}
+	}
+
+	/**
+	 * Reconstructs a shape from the tokens of its toString() representation, starting at the shape type token.
+	 */
+	private static Shape splitParseShape(String[] words, int start) {
+		switch (words[start]) {
+		case "rect":
+			return new Rectangle(Integer.parseInt(words[start+1]), Integer.parseInt(words[start+2]),
+					Integer.parseInt(words[start+3]), Integer.parseInt(words[start+4]),
+					new Color(Integer.parseInt(words[start+5])));
+		case "ellipse":
+			return new Ellipse(Integer.parseInt(words[start+1]), Integer.parseInt(words[start+2]),
+					Integer.parseInt(words[start+3]), Integer.parseInt(words[start+4]),
+					new Color(Integer.parseInt(words[start+5])));
+		case "segment":
+			return new Segment(Integer.parseInt(words[start+1]), Integer.parseInt(words[start+2]),
+					Integer.parseInt(words[start+3]), Integer.parseInt(words[start+4]),
+					new Color(Integer.parseInt(words[start+5])));
+		case "polyline": // A variable number of points, as [x,y;x,y;...]
+			List<Point> points = new ArrayList<Point>();
+			for (String point : words[start+1].substring(1, words[start+1].length()-1).split(";")) {
+				String[] xy = point.split(",");
+				points.add(new Point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1])));
+			}
+			return new Polyline(points, new Color(Integer.parseInt(words[start+2])));
+		default:
+			throw new IllegalArgumentException("unknown shape " + words[start]);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The server's undo and redo history, kept as the commands that would reverse each edit rather than as copies of the
+ * sketch, so it grows with the number of edits, not the number of shapes.
+ *
+ * Editors send save_state before each action (on mouse press), which starts a new step; undo reverses every edit
+ * since, and redo puts them back. Every inverse is made of ADD_AT, REMOVE, MOVE, and RECOLOR, so it can be applied
+ * to the master sketch (and sent to clients) like any other edit:
+ *   add				-> remove the new ID
+ *   move				-> move back
+ *   recolor			-> recolor to the old color
+ *   remove				-> add the shape back at its ID
+ *   top, bottom		-> remove the shape's new ID and add it back at its old one
+ *   add at an ID		-> put back what was there, or remove it
+ */
+public class UndoHistory {
+	private Deque<List<Command>> undo = new ArrayDeque<List<Command>>();	// steps, newest first
+	private Deque<List<Command>> redo = new ArrayDeque<List<Command>>();	// undone steps, most recently undone first
+	private int depth;	// how many steps to keep
+
+	/**
+	 * @param depth	how many steps can be undone; older ones are forgotten
+	 */
+	public UndoHistory(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Starts a new step (save_state). Anything undone can no longer be redone, since the sketch is taking another
+	 * branch. A step with no edits yet is reused, so undo doesn't have to get through clicks that changed nothing.
+	 */
+	public void checkpoint() {
+		redo.clear();
+		if (!undo.isEmpty() && undo.peekFirst().isEmpty()) return;
+		undo.addFirst(new ArrayList<Command>());
+		if (undo.size() > depth) undo.removeLast();
+	}
+
+	/**
+	 * Notes how to reverse an edit that is about to be applied to the sketch; call it before applying the edit.
+	 * Edits made before the first checkpoint can't be undone, as before.
+	 */
+	public void record(Command cmd, Sketch sketch) {
+		if (!undo.isEmpty()) addInverse(cmd, sketch, undo.peekFirst());
+	}
+
+	/**
+	 * Undoes the latest step, applying the reversing edits to the sketch.
+	 *
+	 * @return	the edits applied, in order, or null if there's nothing to undo
+	 */
+	public List<Command> undo(Sketch sketch) {
+		if (undo.isEmpty()) return null;
+		List<Command> step = undo.removeFirst();
+		List<Command> inverse = new ArrayList<Command>();
+		List<Command> applied = replay(step, sketch, inverse);
+		redo.addFirst(inverse);
+		return applied;
+	}
+
+	/**
+	 * Redoes the latest undone step, applying its edits to the sketch again.
+	 *
+	 * @return	the edits applied, in order, or null if there's nothing to redo
+	 */
+	public List<Command> redo(Sketch sketch) {
+		if (redo.isEmpty()) return null;
+		List<Command> step = redo.removeFirst();
+		List<Command> inverse = new ArrayList<Command>();
+		List<Command> applied = replay(step, sketch, inverse);
+		undo.addFirst(inverse);
+		if (undo.size() > depth) undo.removeLast();
+		return applied;
+	}
+
+	/**
+	 * Forgets everything (the sketch has been replaced wholesale).
+	 */
+	public void clear() {
+		undo.clear();
+		redo.clear();
+	}
+
+	/**
+	 * Applies a step's edits to the sketch, noting how to reverse each in inverse.
+	 * A step's edits are stored last-first (see addInverse()), so they're applied from the end.
+	 */
+	private static List<Command> replay(List<Command> step, Sketch sketch, List<Command> inverse) {
+		List<Command> applied = new ArrayList<Command>(step.size());
+		for (int i = step.size() - 1; i >= 0; i--) {
+			Command cmd = step.get(i);
+			addInverse(cmd, sketch, inverse);
+			cmd.applyTo(sketch);
+			applied.add(cmd);
+		}
+		return applied;
+	}
+
+	/**
+	 * Adds to a step the edits that would reverse the given one, as the sketch stands before it. The step is kept
+	 * last-first, so each edit's inverse goes in backwards too.
+	 */
+	private static void addInverse(Command cmd, Sketch sketch, List<Command> step) {
+		int id = cmd.getId();
+		Shape shape;
+		switch (cmd.getOp()) {
+		case Command.ADD:
+			step.add(Command.withId(Command.REMOVE, sketch.getCurID())); // Where it's about to go
+			break;
+		case Command.MOVE:
+			if (sketch.getShape(id) == null) break;
+			// A drag is many small moves of one shape; reverse them all as one
+			Command last = step.isEmpty() ? null : step.get(step.size() - 1);
+			if (last != null && last.getOp() == Command.MOVE && last.getId() == id) {
+				step.set(step.size() - 1, Command.move(id, last.getDx() - cmd.getDx(), last.getDy() - cmd.getDy()));
+			} else {
+				step.add(Command.move(id, -cmd.getDx(), -cmd.getDy()));
+			}
+			break;
+		case Command.RECOLOR:
+			shape = sketch.getShape(id);
+			if (shape != null) step.add(Command.recolor(id, shape.getColor().getRGB()));
+			break;
+		case Command.REMOVE:
+			shape = sketch.getShape(id);
+			if (shape != null) step.add(Command.addAt(id, shape)); // The sketch never changes a shape, so no copy
+			break;
+		case Command.TOP:
+		case Command.BOTTOM:
+			shape = sketch.getShape(id);
+			if (shape == null) break;
+			step.add(Command.addAt(id, shape)); // Second: back where it was
+			step.add(Command.withId(Command.REMOVE, cmd.getOp() == Command.TOP ? sketch.getCurID()
+					: sketch.getLeastID())); // First: gone from where it went
+			break;
+		case Command.ADD_AT:
+			shape = sketch.getShape(id);
+			step.add(shape == null ? Command.withId(Command.REMOVE, id) : Command.addAt(id, shape));
+			break;
+		}
+	}
+}
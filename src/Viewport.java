@@ -0,0 +1,129 @@
+import java.awt.Graphics2D;
+import java.awt.Point;
+
+/**
+ * How the sketch is shown on the editor's canvas: zoomed by scale, with the sketch point (left, top) at the canvas's
+ * upper left corner, so the sketch point (x, y) is at ((x - left) * scale, (y - top) * scale) on the canvas.
+ * Immutable, like Bounds; zooming or panning makes a new one.
+ */
+public class Viewport {
+	public static final double MIN_SCALE = 1.0 / 64, MAX_SCALE = 32;	// how far out and in it zooms
+	public static final Viewport ACTUAL_SIZE = new Viewport(1, 0, 0);
+
+	public final double scale;		// canvas pixels per sketch pixel
+	public final double left, top;	// the sketch point at the canvas's upper left corner
+
+	public Viewport(double scale, double left, double top) {
+		scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+		if (Math.abs(scale - 1) < 1e-6) { // Back to actual size (give or take rounding): pixel for pixel, unzoomed
+			scale = 1;
+			left = Math.rint(left);
+			top = Math.rint(top);
+		}
+		this.scale = scale;
+		this.left = left;
+		this.top = top;
+	}
+
+	/**
+	 * Returns whether sketch pixels are canvas pixels, only shifted; then shapes are drawn just as they would be with
+	 * no viewport at all.
+	 */
+	public boolean isActualSize() {
+		return scale == 1;
+	}
+
+	/**
+	 * Returns the sketch point at the canvas point (the sketch pixel the canvas pixel is in).
+	 */
+	public Point toSketch(Point p) {
+		return new Point((int) Math.floor(left + p.x / scale), (int) Math.floor(top + p.y / scale));
+	}
+
+	/**
+	 * Returns the canvas x coordinate of the sketch pixel's left edge.
+	 */
+	public int screenX(int x) {
+		return (int) Math.floor((x - left) * scale);
+	}
+
+	/**
+	 * Returns the canvas y coordinate of the sketch pixel's top edge.
+	 */
+	public int screenY(int y) {
+		return (int) Math.floor((y - top) * scale);
+	}
+
+	/**
+	 * Returns the canvas pixels the sketch box covers, with room around it unless at actual size for lines (which
+	 * are a sketch pixel wide, so thicker zoomed in) and rounding.
+	 */
+	public Bounds onScreen(Bounds area) {
+		if (area.isEmpty()) return area;
+		int margin = isActualSize() ? 0 : (int) Math.ceil(scale) + 1;
+		int x1 = screenX(area.minX), y1 = screenY(area.minY);
+		// Through the pixel the far edge is in; at least the one pixel, however small the box
+		int x2 = Math.max(x1, (int) Math.ceil((area.maxX + 1 - left) * scale) - 1);
+		int y2 = Math.max(y1, (int) Math.ceil((area.maxY + 1 - top) * scale) - 1);
+		return new Bounds(x1 - margin, y1 - margin, x2 + margin, y2 + margin);
+	}
+
+	/**
+	 * Returns the sketch pixels the canvas box covers (with a pixel's room unless at actual size, for rounding).
+	 */
+	public Bounds inSketch(Bounds area) {
+		if (area.isEmpty()) return area;
+		int margin = isActualSize() ? 0 : 1;
+		return new Bounds((int) Math.floor(left + area.minX / scale) - margin,
+				(int) Math.floor(top + area.minY / scale) - margin,
+				(int) Math.ceil(left + (area.maxX + 1) / scale) - 1 + margin,
+				(int) Math.ceil(top + (area.maxY + 1) / scale) - 1 + margin);
+	}
+
+	/**
+	 * Returns how big the sketch box is on the canvas, in pixels along its longer side.
+	 */
+	public double sizeOnScreen(Bounds area) {
+		return Math.max(area.maxX - area.minX + 1, area.maxY - area.minY + 1) * scale;
+	}
+
+	/**
+	 * Sets the graphics up to draw in sketch coordinates, from the canvas coordinates it's in.
+	 */
+	public void transform(Graphics2D g) {
+		if (isActualSize()) {
+			g.translate((int) -left, (int) -top); // Keeps Java2D on its untransformed paths
+			return;
+		}
+		g.scale(scale, scale);
+		g.translate(-left, -top);
+	}
+
+	/**
+	 * Sets the graphics up to draw points already multiplied by the scale, from the canvas coordinates it's in: just
+	 * a translation, by whole pixels (so they can be up to a pixel off from where transform() puts them).
+	 */
+	public void translateScaled(Graphics2D g) {
+		g.translate(-(int) Math.floor(left * scale), -(int) Math.floor(top * scale));
+	}
+
+	/**
+	 * Returns the view zoomed by the factor, keeping the sketch point under the canvas point where it is.
+	 */
+	public Viewport zoomedAt(Point p, double factor) {
+		double to = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+		return new Viewport(to, left + p.x / scale - p.x / to, top + p.y / scale - p.y / to);
+	}
+
+	/**
+	 * Returns the view with the sketch dragged by the given displacement on the canvas.
+	 */
+	public Viewport panned(int dx, int dy) {
+		return new Viewport(scale, left - dx / scale, top - dy / scale);
+	}
+
+	@Override
+	public String toString() {
+		return "x" + scale + " at " + left + "," + top;
+	}
+}
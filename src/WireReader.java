@@ -0,0 +1,110 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the sketch protocol from a blocking stream, as text lines or binary frames (see BinaryProtocol).
+ * Takes the place of a BufferedReader, which can't be used here: it reads ahead and decodes characters, so once the
+ * stream switches to binary framing the bytes it had already buffered would be lost or mangled.
+ */
+public class WireReader {
+	private InputStream in;						// raw stream; buffering is done here
+	private byte[] chunk = new byte[8192];		// bytes read but not yet consumed
+	private int pos, limit;						// the unconsumed part of chunk
+	private byte[] message = new byte[256];		// the line or frame being assembled (grows as needed)
+
+	public WireReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Refills chunk once everything in it has been consumed; returns false at end of stream.
+	 */
+	private boolean fill() throws IOException {
+		int n = in.read(chunk, 0, chunk.length);
+		if (n < 0) return false;
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	/**
+	 * Makes sure message can hold at least the given number of bytes, keeping the first keep bytes.
+	 */
+	private void ensureCapacity(int size, int keep) {
+		if (size > message.length) {
+			byte[] bigger = new byte[Math.max(size, message.length * 2)];
+			System.arraycopy(message, 0, bigger, 0, keep);
+			message = bigger;
+		}
+	}
+
+	/**
+	 * Reads a line of text, like BufferedReader.readLine() (a trailing \r is dropped).
+	 *
+	 * @return	the line, or null at end of stream
+	 */
+	public String readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			if (pos == limit && !fill()) { // End of stream
+				return length == 0 ? null : new String(message, 0, length, StandardCharsets.UTF_8);
+			}
+			// Copy up to the newline (or the end of what's buffered) in one go
+			int start = pos;
+			while (pos < limit && chunk[pos] != '\n') pos++;
+			ensureCapacity(length + pos - start, length);
+			System.arraycopy(chunk, start, message, length, pos - start);
+			length += pos - start;
+			if (pos < limit) { // Found the newline
+				pos++;
+				if (length > 0 && message[length-1] == '\r') length--;
+				return new String(message, 0, length, StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * Reads a binary frame.
+	 *
+	 * @return	the decoded command, or null at end of stream
+	 * @throws IOException	if the stream ends mid-frame or the frame is malformed
+	 */
+	public Command readFrame() throws IOException {
+		// Length prefix
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (pos == limit && !fill()) {
+				if (shift == 0) return null; // Clean end of stream, between frames
+				throw new EOFException("stream ended mid-frame");
+			}
+			byte b = chunk[pos++];
+			length |= (b & 0x7f) << shift;
+			if (b >= 0) break;
+			if (shift >= 28) throw new IOException("bad frame length");
+		}
+		if (length <= 0 || length > BinaryProtocol.MAX_FRAME) throw new IOException("bad frame length " + length);
+
+		// Body
+		ensureCapacity(length, 0);
+		int have = 0;
+		while (have < length) {
+			if (pos == limit && !fill()) throw new EOFException("stream ended mid-frame");
+			int n = Math.min(limit - pos, length - have);
+			System.arraycopy(chunk, pos, message, have, n);
+			pos += n;
+			have += n;
+		}
+		try {
+			return BinaryProtocol.decode(message, 0, length);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("malformed frame: " + e.getMessage());
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}